@@ -0,0 +1,51 @@
+package com.github.jsbannis;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Saved pages used by the benchmarks, from {@code src/jmh/resources/fixtures}.
+ */
+public class Fixtures
+{
+    /**
+     * One page of the bestseller list.
+     */
+    public static final String LIST = "list.html";
+
+    /**
+     * A product page, with ASIN {@code B010000001}.
+     */
+    public static final String DETAIL = "detail.html";
+
+    private Fixtures()
+    {
+    }
+
+    public static byte[] readBytes(String name)
+    {
+        try (InputStream in = Fixtures.class.getResourceAsStream("/fixtures/" + name))
+        {
+            if (in == null)
+                throw new IllegalArgumentException("No fixture named " + name);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) > 0)
+                out.write(buffer, 0, read);
+            return out.toByteArray();
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static String read(String name)
+    {
+        return new String(readBytes(name), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,71 @@
+package com.github.jsbannis.data;
+
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Mapping a row of {@code books} to a {@link Book}. The row comes from an
+ * in-memory stand-in for the driver's result set, so this is only the cost
+ * of our own mapping code.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BookLoaderBenchmark
+{
+    private ResultSet _row;
+
+    @Setup
+    public void setUp()
+    {
+        Map<String, Object> row = new HashMap<>();
+        row.put("asin", "B010000001");
+        row.put("title", "Book Number 1: A Thrilling Tale of Mystery and Suspense");
+        row.put("byline", "by Author Name 1");
+        row.put("link", "http://www.amazon.com/Book-Number-1-ebook/dp/B010000001/ref=zg_bs_digital-text_f_1");
+        row.put("review", "4.5 out of 5 stars");
+        row.put("price", "$0.00");
+        row.put("image", "https://images-na.ssl-images-amazon.com/images/I/51Ab1xQ.jpg");
+        row.put("detail", "A gripping story about a detective who finds more than she bargained for.");
+        row.put("time", Timestamp.from(Instant.now()));
+        row.put("rank", 1);
+        row.put("trend", 2.5);
+        row.put("price_cents", 0);
+        row.put("rating", (short) 45);
+        row.put("review_count", 1234);
+        _row = (ResultSet) Proxy.newProxyInstance(
+            ResultSet.class.getClassLoader(),
+            new Class<?>[] {ResultSet.class},
+            (proxy, method, args) -> {
+                if (method.getName().startsWith("get") && args != null && args.length == 1 && args[0] instanceof String)
+                    return row.get(args[0]);
+                throw new UnsupportedOperationException(method.getName());
+            });
+    }
+
+    @Benchmark
+    public Book readBook() throws SQLException
+    {
+        return BookLoader.readBook(_row);
+    }
+}
@@ -0,0 +1,120 @@
+package com.github.jsbannis.rss;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import com.github.jsbannis.data.Book;
+
+/**
+ * Rendering the feed through ROME, through the streaming writer, and from
+ * cached items.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class RssBenchmark
+{
+    @Param({"100", "10000", "100000"})
+    public int _books;
+
+    private List<Book> _list;
+    private ItemCache _items;
+
+    @Setup
+    public void setUp()
+    {
+        _list = books(_books);
+        _items = new ItemCache();
+        _list.forEach(_items::get);
+    }
+
+    @Benchmark
+    public String rome() throws Exception
+    {
+        return new RssGenerator().createRss(_list);
+    }
+
+    @Benchmark
+    public long streaming() throws IOException
+    {
+        CountingOutputStream out = new CountingOutputStream();
+        RssWriter writer = new RssWriter(out);
+        writer.write(_list);
+        return out._count;
+    }
+
+    /**
+     * A rebuild where every item is already encoded, as after an index run
+     * that found nothing new.
+     */
+    @Benchmark
+    public long cached() throws IOException
+    {
+        CountingOutputStream out = new CountingOutputStream();
+        RssWriter writer = new RssWriter(out);
+        for (Book book : _list)
+            writer.writeItem(_items.get(book));
+        writer.finish();
+        return out._count;
+    }
+
+    static List<Book> books(int count)
+    {
+        Instant now = Instant.now();
+        List<Book> books = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+        {
+            books.add(new Book(
+                String.format("B0%08d", i),
+                Integer.toString(i + 1),
+                "Book Number " + i + ": A Thrilling Tale of Mystery & Suspense",
+                "by Author Name " + i,
+                "http://www.amazon.com/Book-Number-" + i + "-ebook/dp/B0" + i + "/ref=zg_bs_digital-text_f_" + i,
+                "4.5 out of 5 stars",
+                "$0.00",
+                "https://images-na.ssl-images-amazon.com/images/I/51Ab" + i + "xQ.jpg",
+                "A <b>gripping</b> story about a detective who finds more than she bargained for. "
+                    + "When a body turns up in the harbour, nobody in town wants to talk about it.",
+                now.minusSeconds(i)));
+        }
+        return books;
+    }
+
+    /**
+     * Throws the feed away, so only the rendering is measured.
+     */
+    private static class CountingOutputStream extends OutputStream
+    {
+        long _count;
+
+        @Override
+        public void write(int b)
+        {
+            _count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+        {
+            _count += len;
+        }
+    }
+}
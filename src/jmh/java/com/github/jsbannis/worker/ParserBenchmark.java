@@ -0,0 +1,114 @@
+package com.github.jsbannis.worker;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Element;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import com.github.jsbannis.Fixtures;
+import com.github.jsbannis.data.Book;
+
+/**
+ * Extraction from saved list and product pages, without any network.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark
+{
+    private static final String LIST_URL = "http://www.amazon.com/Best-Sellers-Kindle-Store/zgbs/digital-text/";
+    private static final String DETAIL_URL = "http://www.amazon.com/Book-Number-1-ebook/dp/B010000001/";
+    private static final String TITLE = "Book Number 1: A Thrilling Tale of Mystery and...";
+
+    private String _list;
+    private String _detail;
+    private Page _detailPage;
+    private Parser _parser;
+
+    @Setup
+    public void setUp()
+    {
+        _list = Fixtures.read(Fixtures.LIST);
+        _detail = Fixtures.read(Fixtures.DETAIL);
+        _detailPage = new Page(DETAIL_URL, 200, "UTF-8", Fixtures.readBytes(Fixtures.DETAIL));
+
+        // Every book on the list gets the same product page, cut down to the
+        // parts we read, so that listPage measures the list and not the
+        // detail parsing
+        Page detail = new Page(DETAIL_URL, 200, "UTF-8",
+            DetailExtractor.extract(_detailPage).get().outerHtml().getBytes(StandardCharsets.UTF_8));
+        Fetcher fetcher = new Fetcher(0, 1)
+        {
+            @Override
+            public Optional<Page> fetch(String url)
+            {
+                return Optional.of(detail);
+            }
+        };
+        _parser = new Parser(Collections.singletonList(new CrawlList(CrawlList.DEFAULT_NAME,
+            CrawlList.DEFAULT_TITLE, LIST_URL + "?pg={page}", 1)), 1, fetcher, DetailCache.DISABLED);
+    }
+
+    /**
+     * Parsing a product page and pulling the ASIN, description and title out
+     * of it, as {@code Parser.getDetailedInfo} does.
+     */
+    @Benchmark
+    public Optional<DetailedInfo> detailPage()
+    {
+        return _parser.extractDetailedInfo(Jsoup.parse(_detail, DETAIL_URL), TITLE);
+    }
+
+    /**
+     * Reading a fetched product page the way {@code Parser.getDetailedInfo}
+     * does, from only the parts {@link DetailExtractor} cuts out of it.
+     */
+    @Benchmark
+    public Optional<DetailedInfo> detailPageExtracted()
+    {
+        return _parser.extractDetailedInfo(_detailPage, TITLE);
+    }
+
+    /**
+     * Reading a fetched product page by parsing all of it, which is what
+     * happens when the extractor misses something.
+     */
+    @Benchmark
+    public Optional<DetailedInfo> detailPageParsed() throws IOException
+    {
+        return _parser.extractDetailedInfo(_detailPage.parse(), TITLE);
+    }
+
+    /**
+     * Parsing a list page and turning every entry into a {@link Book}, as
+     * {@code Parser.processBook} does.
+     */
+    @Benchmark
+    public List<Book> listPage()
+    {
+        Instant now = Instant.now();
+        List<Book> books = new ArrayList<>();
+        for (Element element : Jsoup.parse(_list, LIST_URL).getElementsByClass("zg_itemImmersion"))
+            _parser.processBook(element, now).ifPresent(books::add);
+        return books;
+    }
+}
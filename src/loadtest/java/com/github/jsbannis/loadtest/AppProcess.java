@@ -0,0 +1,87 @@
+package com.github.jsbannis.loadtest;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.github.jsbannis.Main;
+
+/**
+ * The app in a java process of its own, started with a Procfile command the
+ * way Heroku would, from the load test's class path.
+ */
+class AppProcess implements Closeable
+{
+    private final Process _process;
+
+    private AppProcess(Process process)
+    {
+        _process = process;
+    }
+
+    /**
+     * @param javaOptions options for the JVM, such as its heap size
+     * @param env added to the load test's own environment
+     * @param log where the process's output goes
+     * @param args arguments to {@link Main}
+     */
+    static AppProcess start(String javaOptions, Map<String, String> env, Path log, String... args) throws IOException
+    {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        for (String option : javaOptions.trim().split("\\s+"))
+        {
+            if (!option.isEmpty())
+                command.add(option);
+        }
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(Main.class.getName());
+        command.addAll(Arrays.asList(args));
+
+        ProcessBuilder builder = new ProcessBuilder(command)
+            .redirectErrorStream(true)
+            .redirectOutput(ProcessBuilder.Redirect.appendTo(log.toFile()));
+        builder.environment().putAll(env);
+        return new AppProcess(builder.start());
+    }
+
+    boolean isAlive()
+    {
+        return _process.isAlive();
+    }
+
+    /**
+     * @return the exit code, or -1 if it was still running after the timeout
+     * and had to be killed.
+     */
+    int waitFor(long timeout, TimeUnit unit) throws InterruptedException
+    {
+        if (_process.waitFor(timeout, unit))
+            return _process.exitValue();
+        close();
+        return -1;
+    }
+
+    @Override
+    public void close()
+    {
+        _process.destroy();
+        try
+        {
+            if (!_process.waitFor(10, TimeUnit.SECONDS))
+                _process.destroyForcibly();
+        }
+        catch (InterruptedException e)
+        {
+            _process.destroyForcibly();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
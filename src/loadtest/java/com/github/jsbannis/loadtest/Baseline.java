@@ -0,0 +1,78 @@
+package com.github.jsbannis.loadtest;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Results of an earlier load test to compare against, in a properties file.
+ * <p>
+ * Keys are {@code c<concurrency>.<phase>.<measure>}. Measures ending in
+ * {@code _ms} are latencies, {@code throughput} is requests a second and
+ * {@code errors} is the fraction of requests that failed.
+ */
+class Baseline
+{
+    private Baseline()
+    {
+    }
+
+    static Map<String, Double> read(Path file) throws IOException
+    {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8))
+        {
+            properties.load(reader);
+        }
+        Map<String, Double> baseline = new LinkedHashMap<>();
+        for (String key : properties.stringPropertyNames())
+            baseline.put(key, Double.parseDouble(properties.getProperty(key)));
+        return baseline;
+    }
+
+    static void write(Path file, Map<String, Double> results) throws IOException
+    {
+        if (file.getParent() != null)
+            Files.createDirectories(file.getParent());
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8))
+        {
+            writer.write("# Load test baseline, see LoadTest\n");
+            for (Map.Entry<String, Double> result : results.entrySet())
+                writer.write(result.getKey() + "=" + String.format("%.3f", result.getValue()) + "\n");
+        }
+    }
+
+    /**
+     * @param tolerance how much worse, as a fraction, a measure may get
+     * @return a description of each measure that got worse by more than that.
+     */
+    static List<String> compare(Map<String, Double> baseline, Map<String, Double> results, double tolerance)
+    {
+        List<String> regressions = new ArrayList<>();
+        baseline.forEach((key, before) -> {
+            Double after = results.get(key);
+            if (after == null)
+                return;
+            boolean worse;
+            if (key.endsWith(".throughput"))
+                worse = after < before * (1 - tolerance);
+            else if (key.endsWith(".errors"))
+                worse = after > before + 0.01;
+            else if (key.endsWith(".p999_ms"))
+                worse = false; // Too few samples behind it to be steady
+            else
+                worse = after > before * (1 + tolerance);
+            if (worse)
+                regressions.add(String.format("%s went from %.3f to %.3f", key, before, after));
+        });
+        return regressions;
+    }
+}
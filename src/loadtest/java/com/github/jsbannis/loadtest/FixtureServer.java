@@ -0,0 +1,213 @@
+package com.github.jsbannis.loadtest;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToLongFunction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Stands in for Amazon: serves bestseller list pages and product pages shaped
+ * like the ones the parser reads, for books made up on the spot.
+ * <p>
+ * Each list shows a window of books that moves along by {@code turnover}
+ * books on every {@link #nextRound()}, so each index run has some books to
+ * add and some to remove.
+ * <p>
+ * Also serves the tests of {@code Parser}, which slow down some product
+ * pages with {@link #delayProducts} to have them finish out of order.
+ */
+public class FixtureServer implements Closeable
+{
+    private static final int BOOKS_PER_PAGE = 20;
+    private static final Pattern LIST = Pattern.compile("/zgbs/([a-z0-9-]+)/");
+    private static final Pattern PAGE = Pattern.compile("pg=(\\d+)");
+    private static final Pattern PRODUCT = Pattern.compile("/dp/(B(\\d{2})(\\d{7}))");
+
+    private final List<String> _lists;
+    private final int _pages;
+    private final int _turnover;
+    private final String _padding;
+    private final AtomicInteger _round = new AtomicInteger();
+    private volatile ToLongFunction<String> _productDelay = asin -> 0;
+    private final ExecutorService _executor = Executors.newFixedThreadPool(8);
+    private final HttpServer _server;
+
+    /**
+     * @param lists names of the bestseller lists
+     * @param pages pages in each list
+     * @param turnover books replaced in each list per round
+     * @param pageSize rough size of a product page in bytes, real ones are
+     * a few hundred kilobytes
+     */
+    public FixtureServer(List<String> lists, int pages, int turnover, int pageSize) throws IOException
+    {
+        _lists = new ArrayList<>(lists);
+        _pages = pages;
+        _turnover = turnover;
+        _padding = String.join("", Collections.nCopies(pageSize / 64,
+            "var ue_t0=ue_t0||+new Date();window.P&&P.register('nav');\n"));
+        _server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        _server.createContext("/zgbs/", this::list);
+        _server.createContext("/dp/", this::product);
+        _server.setExecutor(_executor);
+        _server.start();
+    }
+
+    public int getPort()
+    {
+        return _server.getAddress().getPort();
+    }
+
+    /**
+     * @return the lists in the form {@code CRAWL_LISTS} takes.
+     */
+    public String getCrawlLists()
+    {
+        StringBuilder config = new StringBuilder();
+        for (String list : _lists)
+        {
+            config.append(list).append(',').append(_pages).append(',')
+                .append(baseUrl()).append("/zgbs/").append(list).append("/?pg={page},")
+                .append("Load Test ").append(list).append(';');
+        }
+        return config.toString();
+    }
+
+    /**
+     * Moves every list along to its next set of books.
+     */
+    public void nextRound()
+    {
+        _round.incrementAndGet();
+    }
+
+    /**
+     * @param millis how long to wait before answering for the product page
+     * of each ASIN
+     */
+    public void delayProducts(ToLongFunction<String> millis)
+    {
+        _productDelay = millis;
+    }
+
+    /**
+     * @return the ASIN of the book at a place in a list, counting from 0,
+     * in the first round.
+     */
+    public String getAsin(String list, int place)
+    {
+        return asin(_lists.indexOf(list), place);
+    }
+
+    @Override
+    public void close()
+    {
+        _server.stop(0);
+        _executor.shutdownNow();
+    }
+
+    private String baseUrl()
+    {
+        return "http://127.0.0.1:" + getPort();
+    }
+
+    private void list(HttpExchange exchange) throws IOException
+    {
+        Matcher list = LIST.matcher(exchange.getRequestURI().getPath());
+        Matcher page = PAGE.matcher(String.valueOf(exchange.getRequestURI().getQuery()));
+        int index = list.lookingAt() ? _lists.indexOf(list.group(1)) : -1;
+        if (index < 0 || !page.find())
+        {
+            send(exchange, 404, "Not found");
+            return;
+        }
+
+        int first = _round.get() * _turnover + (Integer.parseInt(page.group(1)) - 1) * BOOKS_PER_PAGE;
+        StringBuilder html = new StringBuilder(BOOKS_PER_PAGE * 1024)
+            .append("<!DOCTYPE html><html><head><meta charset=\"utf-8\"><title>Amazon Best Sellers</title></head>")
+            .append("<body><div id=\"zg_centerListWrapper\">\n");
+        for (int i = 0; i < BOOKS_PER_PAGE; i++)
+        {
+            int number = first + i;
+            String asin = asin(index, number);
+            String link = baseUrl() + "/dp/" + asin + "/ref=zg_bs_" + i;
+            html.append("<div class=\"zg_itemImmersion\"><div class=\"zg_rankDiv\"><span class=\"zg_rankNumber\">")
+                .append(number + 1).append(".</span></div>\n")
+                .append("<div class=\"zg_itemWrapper\"><div class=\"zg_image\"><div class=\"zg_itemImageImmersion\"><a href=\"")
+                .append(link).append("\"><img src=\"").append(baseUrl()).append("/images/I/").append(asin)
+                .append("._AC_UL160_SR106,160_.jpg\"></a></div></div>\n")
+                .append("<div class=\"zg_title\"><a href=\"").append(link).append("\">")
+                .append(title(asin)).append("...</a></div>\n")
+                .append("<div class=\"zg_byline\">by Author ").append(number).append("</div>\n")
+                .append("<div class=\"zg_reviews\"><span class=\"a-icon-alt\">4.")
+                .append(number % 10).append(" out of 5 stars</span></div>\n")
+                .append("<div class=\"zg_price\"><strong class=\"price\">$0.00</strong></div></div></div>\n");
+        }
+        send(exchange, 200, html.append("</div></body></html>").toString());
+    }
+
+    private void product(HttpExchange exchange) throws IOException
+    {
+        Matcher product = PRODUCT.matcher(exchange.getRequestURI().getPath());
+        if (!product.lookingAt())
+        {
+            send(exchange, 404, "Not found");
+            return;
+        }
+        String asin = product.group(1);
+        long delay = _productDelay.applyAsLong(asin);
+        if (delay > 0)
+        {
+            try
+            {
+                Thread.sleep(delay);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        send(exchange, 200, "<!DOCTYPE html><html><head><meta charset=\"utf-8\">"
+            + "<title>Amazon.com: " + title(asin) + " eBook: Author: Kindle Store</title>"
+            + "<script>" + _padding + "</script></head><body>\n"
+            + "<div id=\"bookDescription_feature_div\"><noscript><div>The made up story of book " + asin
+            + ", which somebody has to read.</div></noscript></div>\n"
+            + "<div id=\"detail-bullets\"><ul><li><b>File Size:</b> 1234 KB</li><li><b>ASIN:</b> " + asin
+            + "</li></ul></div></body></html>");
+    }
+
+    private static String asin(int list, int number)
+    {
+        return String.format("B%02d%07d", list, number);
+    }
+
+    private static String title(String asin)
+    {
+        return "Book " + asin + ": A Made Up Story";
+    }
+
+    private static void send(HttpExchange exchange, int status, String body) throws IOException
+    {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/html; charset=UTF-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody())
+        {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.github.jsbannis.loadtest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Requests a URL from a number of threads, each sending its next request as
+ * soon as the last one is answered, and asking for gzip like a feed reader.
+ */
+class LoadClient
+{
+    private static final int TIMEOUT = (int) TimeUnit.SECONDS.toMillis(30);
+
+    private final URL _url;
+
+    LoadClient(URL url)
+    {
+        _url = url;
+    }
+
+    /**
+     * @return every request made.
+     */
+    Samples run(int concurrency, long duration, TimeUnit unit) throws Exception
+    {
+        long end = System.nanoTime() + unit.toNanos(duration);
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        try
+        {
+            List<Future<Samples>> clients = new ArrayList<>();
+            for (int i = 0; i < concurrency; i++)
+            {
+                clients.add(executor.submit(() -> {
+                    Samples samples = new Samples();
+                    byte[] buffer = new byte[16384];
+                    while (System.nanoTime() < end)
+                    {
+                        long start = System.nanoTime();
+                        boolean failed = !request(buffer);
+                        samples.add(start, System.nanoTime() - start, failed);
+                    }
+                    return samples;
+                }));
+            }
+
+            Samples all = new Samples();
+            for (Future<Samples> client : clients)
+                all.addAll(client.get());
+            return all;
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return whether the whole feed came back.
+     */
+    boolean request(byte[] buffer)
+    {
+        try
+        {
+            HttpURLConnection connection = (HttpURLConnection) _url.openConnection();
+            connection.setConnectTimeout(TIMEOUT);
+            connection.setReadTimeout(TIMEOUT);
+            connection.setRequestProperty("Accept-Encoding", "gzip");
+            int status = connection.getResponseCode();
+            try (InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream())
+            {
+                // Reading to the end lets the connection be kept alive
+                while (in != null && in.read(buffer) >= 0)
+                    ;
+            }
+            return status == HttpURLConnection.HTTP_OK;
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package com.github.jsbannis.loadtest;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.github.jsbannis.Env;
+
+/**
+ * Measures the whole app: a web process serving {@code /books} while index
+ * processes crawl a {@link FixtureServer} into a {@link LocalPostgres}, all
+ * started the way the Procfile starts them.
+ * <p>
+ * Load is applied in steps of increasing concurrency. Each step reports
+ * throughput and latency percentiles separately for the time an index run
+ * was going and the time none was, and the results are compared with a
+ * stored baseline. The run fails if anything got worse by more than the
+ * tolerance. Settings:
+ * <ul>
+ * <li>{@code LOADTEST_CONCURRENCY} - comma separated numbers of clients, one step each</li>
+ * <li>{@code LOADTEST_STEP_SECONDS} - length of each step</li>
+ * <li>{@code LOADTEST_WARMUP_SECONDS} - unmeasured load before the first step</li>
+ * <li>{@code LOADTEST_INDEX_INTERVAL_SECONDS} - time between one index run and the next</li>
+ * <li>{@code LOADTEST_LISTS}, {@code LOADTEST_PAGES}, {@code LOADTEST_TURNOVER},
+ * {@code LOADTEST_PAGE_SIZE} - the fixture's lists, their pages, books replaced each
+ * run and product page size</li>
+ * <li>{@code LOADTEST_WEB_JAVA_OPTS} - JVM options of the web process, by default
+ * those recommended for a 512MB dyno</li>
+ * <li>{@code LOADTEST_BASELINE} - the baseline, written if it doesn't exist</li>
+ * <li>{@code LOADTEST_UPDATE_BASELINE} - replace the baseline with these results</li>
+ * <li>{@code LOADTEST_TOLERANCE_PERCENT} - how much worse a measure may get</li>
+ * <li>{@code LOADTEST_DATABASE_URL} - a database to use instead of starting one, it
+ * should be empty</li>
+ * </ul>
+ * Anything else in the environment, such as {@code WEB_DB_CONCURRENCY}, is
+ * passed on to the app.
+ */
+public class LoadTest
+{
+    private final static Logger LOG = LoggerFactory.getLogger(LoadTest.class);
+
+    private static final long INDEX_TIMEOUT = TimeUnit.MINUTES.toMillis(10);
+    private static final long START_TIMEOUT = TimeUnit.MINUTES.toMillis(2);
+
+    private final FixtureServer _fixture;
+    private final Map<String, String> _env;
+    private final Path _workDir;
+    private final long _indexInterval = TimeUnit.SECONDS.toMillis(Env.getLong("LOADTEST_INDEX_INTERVAL_SECONDS", 15));
+    private final List<long[]> _indexRuns = new ArrayList<>();
+    private volatile boolean _stopped;
+
+    private LoadTest(FixtureServer fixture, Map<String, String> env, Path workDir)
+    {
+        _fixture = fixture;
+        _env = env;
+        _workDir = workDir;
+    }
+
+    public static void main(String... args) throws Exception
+    {
+        int[] steps = Arrays.stream(Env.getString("LOADTEST_CONCURRENCY", "1,4,16,64").split("\\s*,\\s*"))
+            .mapToInt(Integer::parseInt)
+            .toArray();
+        long stepSeconds = Env.getLong("LOADTEST_STEP_SECONDS", 60);
+        Path baselineFile = Paths.get(Env.getString("LOADTEST_BASELINE", "src/loadtest/baseline.properties"));
+        String databaseUrl = Env.getString("LOADTEST_DATABASE_URL", null);
+
+        Path workDir = Files.createTempDirectory("loadtest");
+        LOG.info("Logs and data go in {}", workDir);
+        try (FixtureServer fixture = new FixtureServer(
+                Arrays.asList(Env.getString("LOADTEST_LISTS", "kindle,mystery").split("\\s*,\\s*")),
+                Env.getInt("LOADTEST_PAGES", 5),
+                Env.getInt("LOADTEST_TURNOVER", 10),
+                Env.getInt("LOADTEST_PAGE_SIZE", 200 * 1024));
+             LocalPostgres postgres = databaseUrl == null ? LocalPostgres.start(workDir) : null)
+        {
+            int port;
+            try (ServerSocket socket = new ServerSocket(0))
+            {
+                port = socket.getLocalPort();
+            }
+            Map<String, String> env = new HashMap<>();
+            env.put("DATABASE_URL", postgres != null ? postgres.getUrl() : databaseUrl);
+            env.put("CRAWL_LISTS", fixture.getCrawlLists());
+            env.put("PORT", Integer.toString(port));
+            env.put("RATPACK_PORT", Integer.toString(port));
+            env.put("FEED_SNAPSHOT_DIR", workDir.resolve("snapshots").toString());
+            env.put("INDEX_INTERVAL_MINUTES", "0");
+            // The fixture isn't Amazon, there's no need to be gentle with it
+            if (System.getenv("CRAWL_REQUESTS_PER_SECOND") == null)
+                env.put("CRAWL_REQUESTS_PER_SECOND", "100");
+
+            LoadTest test = new LoadTest(fixture, env, workDir);
+            Map<String, Double> results = test.run(new URL("http://127.0.0.1:" + port + "/books"), steps, stepSeconds);
+            System.exit(test.check(results, baselineFile) ? 0 : 1);
+        }
+    }
+
+    private Map<String, Double> run(URL url, int[] steps, long stepSeconds) throws Exception
+    {
+        LOG.info("Filling the index...");
+        if (index() != 0)
+            throw new IllegalStateException("The first index run failed, see " + _workDir.resolve("index.log"));
+
+        try (AppProcess web = AppProcess.start(
+            Env.getString("LOADTEST_WEB_JAVA_OPTS", "-Xmx300m -Xss512k"), _env, _workDir.resolve("web.log"), "web"))
+        {
+            awaitServing(url, web);
+            LoadClient client = new LoadClient(url);
+            client.run(steps[steps.length - 1], Env.getLong("LOADTEST_WARMUP_SECONDS", 10), TimeUnit.SECONDS);
+
+            Thread indexer = new Thread(this::indexRepeatedly, "loadtest-indexer");
+            indexer.setDaemon(true);
+            indexer.start();
+
+            Map<String, Double> results = new LinkedHashMap<>();
+            System.out.println(String.format("%-8s %-9s %8s %10s %7s %9s %9s %9s",
+                "clients", "phase", "requests", "req/s", "errors", "p50 ms", "p99 ms", "p99.9 ms"));
+            for (int concurrency : steps)
+            {
+                LOG.info("Running {} clients for {} seconds", concurrency, stepSeconds);
+                long start = System.nanoTime();
+                Samples samples = client.run(concurrency, stepSeconds, TimeUnit.SECONDS);
+                long end = System.nanoTime();
+                if (!web.isAlive())
+                    throw new IllegalStateException("The web process died, see " + _workDir.resolve("web.log"));
+
+                long[][] indexing;
+                synchronized (_indexRuns)
+                {
+                    indexing = _indexRuns.stream().map(long[]::clone).toArray(long[][]::new);
+                }
+                long indexingNanos = 0;
+                for (long[] run : indexing)
+                    indexingNanos += Math.max(0, Math.min(run[1], end) - Math.max(run[0], start));
+
+                summarize(results, concurrency, "idle", samples.select(indexing, false), end - start - indexingNanos);
+                summarize(results, concurrency, "indexing", samples.select(indexing, true), indexingNanos);
+            }
+            _stopped = true;
+            indexer.interrupt();
+            return results;
+        }
+        finally
+        {
+            _stopped = true;
+        }
+    }
+
+    /**
+     * Runs the indexer, as the scheduler would, every so often until the
+     * test is over.
+     */
+    private void indexRepeatedly()
+    {
+        try
+        {
+            while (!_stopped)
+            {
+                Thread.sleep(_indexInterval);
+                _fixture.nextRound();
+                long[] run = {System.nanoTime(), Long.MAX_VALUE};
+                synchronized (_indexRuns)
+                {
+                    _indexRuns.add(run);
+                }
+                int exit = index();
+                synchronized (_indexRuns)
+                {
+                    run[1] = System.nanoTime();
+                }
+                LOG.info("Index run took {} ms{}", TimeUnit.NANOSECONDS.toMillis(run[1] - run[0]),
+                    exit == 0 ? "" : " and failed with " + exit);
+            }
+        }
+        catch (InterruptedException | IOException e)
+        {
+            if (!_stopped)
+                LOG.warn("Stopped index runs", e);
+        }
+    }
+
+    private int index() throws IOException, InterruptedException
+    {
+        try (AppProcess index = AppProcess.start("", _env, _workDir.resolve("index.log"), "index"))
+        {
+            return index.waitFor(INDEX_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static void awaitServing(URL url, AppProcess web) throws Exception
+    {
+        long deadline = System.currentTimeMillis() + START_TIMEOUT;
+        while (System.currentTimeMillis() < deadline && web.isAlive())
+        {
+            try
+            {
+                HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+                if (connection.getResponseCode() == HttpURLConnection.HTTP_OK)
+                    return;
+            }
+            catch (IOException e)
+            {
+                // Not listening yet
+            }
+            Thread.sleep(500);
+        }
+        throw new IllegalStateException("The web process didn't start serving " + url);
+    }
+
+    private static void summarize(Map<String, Double> results, int concurrency, String phase, Samples samples, long nanos)
+    {
+        // Not long enough to say anything about
+        if (samples.size() == 0 || nanos < TimeUnit.SECONDS.toNanos(1))
+        {
+            System.out.println(String.format("%-8d %-9s %8s", concurrency, phase, "-"));
+            return;
+        }
+        String prefix = "c" + concurrency + "." + phase + ".";
+        double throughput = samples.size() / (nanos / 1e9);
+        double errors = samples.failures() / (double) samples.size();
+        results.put(prefix + "throughput", throughput);
+        results.put(prefix + "errors", errors);
+        results.put(prefix + "p50_ms", samples.percentile(0.5));
+        results.put(prefix + "p99_ms", samples.percentile(0.99));
+        results.put(prefix + "p999_ms", samples.percentile(0.999));
+        System.out.println(String.format("%-8d %-9s %8d %10.1f %6.2f%% %9.1f %9.1f %9.1f",
+            concurrency, phase, samples.size(), throughput, errors * 100,
+            samples.percentile(0.5), samples.percentile(0.99), samples.percentile(0.999)));
+    }
+
+    /**
+     * @return whether nothing got worse than the baseline.
+     */
+    private boolean check(Map<String, Double> results, Path baselineFile) throws IOException
+    {
+        if (!Files.exists(baselineFile) || Env.getBoolean("LOADTEST_UPDATE_BASELINE", false))
+        {
+            Baseline.write(baselineFile, results);
+            LOG.info("Wrote these results to {} as the baseline", baselineFile);
+            return true;
+        }
+
+        List<String> regressions = Baseline.compare(
+            Baseline.read(baselineFile), results, Env.getLong("LOADTEST_TOLERANCE_PERCENT", 25) / 100.0);
+        if (regressions.isEmpty())
+        {
+            LOG.info("No regressions against {}", baselineFile);
+            return true;
+        }
+        regressions.forEach(regression -> LOG.warn("Regression: {}", regression));
+        return false;
+    }
+}
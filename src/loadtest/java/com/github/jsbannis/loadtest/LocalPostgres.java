@@ -0,0 +1,110 @@
+package com.github.jsbannis.loadtest;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.github.jsbannis.Env;
+
+/**
+ * A throwaway Postgres server in a temporary directory, made with the
+ * {@code initdb} and {@code pg_ctl} in {@code PG_BIN}, or on the path.
+ * <p>
+ * The app relies on COPY, advisory locks, LISTEN/NOTIFY and ON CONFLICT, so
+ * nothing short of a real Postgres will do as a stand-in. Postgres won't run
+ * as root.
+ */
+public class LocalPostgres implements Closeable
+{
+    private final static Logger LOG = LoggerFactory.getLogger(LocalPostgres.class);
+
+    private static final String USER = "loadtest";
+
+    private final Path _dir;
+    private final int _port;
+
+    private LocalPostgres(Path dir, int port)
+    {
+        _dir = dir;
+        _port = port;
+    }
+
+    /**
+     * Creates a new database cluster and starts a server for it.
+     */
+    public static LocalPostgres start(Path workDir) throws IOException, InterruptedException
+    {
+        Path dir = Files.createTempDirectory(workDir, "postgres");
+        int port;
+        try (ServerSocket socket = new ServerSocket(0))
+        {
+            port = socket.getLocalPort();
+        }
+
+        LocalPostgres postgres = new LocalPostgres(dir, port);
+        postgres.run("initdb", "-D", dir.resolve("data").toString(), "-U", USER, "--auth=trust", "-E", "UTF8");
+        postgres.run("pg_ctl", "-D", dir.resolve("data").toString(), "-w", "-l", dir.resolve("server.log").toString(),
+            "-o", "-p " + port + " -k " + dir + " -c listen_addresses=127.0.0.1 -c fsync=off", "start");
+        LOG.info("Started Postgres on port {} in {}", port, dir);
+        return postgres;
+    }
+
+    /**
+     * @return the database in the form {@code DATABASE_URL} takes.
+     */
+    public String getUrl()
+    {
+        // The password is ignored, but the URL parser wants one
+        return "postgres://" + USER + ":" + USER + "@127.0.0.1:" + _port + "/postgres";
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        try
+        {
+            run("pg_ctl", "-D", _dir.resolve("data").toString(), "-w", "-m", "fast", "stop");
+        }
+        catch (IOException e)
+        {
+            LOG.warn("Could not stop Postgres, see {}", _dir.resolve("server.log"), e);
+            return;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        try (Stream<Path> files = Files.walk(_dir))
+        {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    private void run(String program, String... args) throws IOException, InterruptedException
+    {
+        String bin = Env.getString("PG_BIN", null);
+        List<String> command = new ArrayList<>();
+        command.add(bin == null ? program : Paths.get(bin, program).toString());
+        command.addAll(Arrays.asList(args));
+
+        Path log = _dir.resolve(program + ".log");
+        Process process = new ProcessBuilder(command)
+            .redirectErrorStream(true)
+            .redirectOutput(ProcessBuilder.Redirect.appendTo(log.toFile()))
+            .start();
+        if (process.waitFor() != 0)
+            throw new IOException(program + " failed, see " + log);
+    }
+}
@@ -0,0 +1,85 @@
+package com.github.jsbannis.loadtest;
+
+import java.util.Arrays;
+
+/**
+ * Requests made during a load test: when each started, how long it took and
+ * whether it succeeded.
+ */
+class Samples
+{
+    private long[] _starts = new long[1024];
+    private long[] _latencies = new long[1024];
+    private boolean[] _failed = new boolean[1024];
+    private int _size;
+
+    void add(long start, long latency, boolean failed)
+    {
+        if (_size == _starts.length)
+        {
+            _starts = Arrays.copyOf(_starts, _size * 2);
+            _latencies = Arrays.copyOf(_latencies, _size * 2);
+            _failed = Arrays.copyOf(_failed, _size * 2);
+        }
+        _starts[_size] = start;
+        _latencies[_size] = latency;
+        _failed[_size] = failed;
+        _size++;
+    }
+
+    void addAll(Samples other)
+    {
+        for (int i = 0; i < other._size; i++)
+            add(other._starts[i], other._latencies[i], other._failed[i]);
+    }
+
+    /**
+     * @return the requests that started within any of the given intervals, or
+     * outside all of them.
+     *
+     * @param intervals pairs of nanoTime, start and end
+     */
+    Samples select(long[][] intervals, boolean inside)
+    {
+        Samples selected = new Samples();
+        for (int i = 0; i < _size; i++)
+        {
+            boolean in = false;
+            for (long[] interval : intervals)
+                in |= _starts[i] >= interval[0] && _starts[i] < interval[1];
+            if (in == inside)
+                selected.add(_starts[i], _latencies[i], _failed[i]);
+        }
+        return selected;
+    }
+
+    int size()
+    {
+        return _size;
+    }
+
+    int failures()
+    {
+        int failures = 0;
+        for (int i = 0; i < _size; i++)
+        {
+            if (_failed[i])
+                failures++;
+        }
+        return failures;
+    }
+
+    /**
+     * @return the latency, in milliseconds, that the given fraction of
+     * requests were at least as fast as.
+     */
+    double percentile(double fraction)
+    {
+        if (_size == 0)
+            return 0;
+        long[] sorted = Arrays.copyOf(_latencies, _size);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(fraction * _size) - 1;
+        return sorted[Math.max(0, Math.min(_size - 1, index))] / 1e6;
+    }
+}
@@ -0,0 +1,44 @@
+package com.github.jsbannis;
+
+/**
+ * Reads settings from the environment, the way Heroku hands them to us.
+ */
+public class Env
+{
+    private Env()
+    {
+    }
+
+    public static String getString(String name, String defaultValue)
+    {
+        String value = System.getenv(name);
+        return value == null || value.trim().isEmpty() ? defaultValue : value.trim();
+    }
+
+    public static int getInt(String name, int defaultValue)
+    {
+        return (int) getLong(name, defaultValue);
+    }
+
+    public static long getLong(String name, long defaultValue)
+    {
+        String value = getString(name, null);
+        if (value == null)
+            return defaultValue;
+        try
+        {
+            return Long.parseLong(value);
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IllegalArgumentException(
+                "Environment variable " + name + " must be a number but was \"" + value + "\"", e);
+        }
+    }
+
+    public static boolean getBoolean(String name, boolean defaultValue)
+    {
+        String value = getString(name, null);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+}
@@ -1,8 +1,28 @@
 package com.github.jsbannis;
 
-import com.github.jsbannis.data.BookLoader;
-import com.github.jsbannis.rss.RssGenerator;
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.github.jsbannis.data.BookChangeListener;
+import com.github.jsbannis.metrics.Metrics;
+import com.github.jsbannis.metrics.MetricsStore;
+import com.github.jsbannis.rss.FeedCache;
+import com.github.jsbannis.rss.RssWriter;
+import com.github.jsbannis.rss.SnapshotStore;
+import com.github.jsbannis.search.SearchIndex;
+import com.github.jsbannis.web.DatabaseExecutor;
+import com.github.jsbannis.web.FeedHandler;
+import com.github.jsbannis.web.SearchHandler;
+import com.github.jsbannis.worker.CrawlArchive;
+import com.github.jsbannis.worker.CrawlList;
+import com.github.jsbannis.worker.Fetcher;
+import com.github.jsbannis.worker.IndexScheduler;
 import com.github.jsbannis.worker.IndexWorker;
+import com.github.jsbannis.worker.RecordingFetcher;
+import com.github.jsbannis.worker.ReplayFetcher;
 import static ratpack.groovy.Groovy.groovyTemplate;
 import ratpack.groovy.template.TextTemplateModule;
 import ratpack.guice.Guice;
@@ -17,17 +37,88 @@ public class Main
         {
             startWeb();
         }
-        else if (args.length == 1 && args[0].equalsIgnoreCase("index"))
+        else if (args[0].equalsIgnoreCase("index"))
         {
-            startIndexing();
+            startIndexing(args);
         }
     }
-    private static void startIndexing() throws Exception
+    private static void startIndexing(String... args) throws Exception
     {
-        new IndexWorker().doWork();
+        boolean incremental = false;
+        File record = null;
+        File replay = null;
+        for (int i = 1; i < args.length; i++)
+        {
+            if (args[i].equalsIgnoreCase("--incremental"))
+                incremental = true;
+            else if (args[i].equalsIgnoreCase("--record") && i + 1 < args.length)
+                record = new File(args[++i]);
+            else if (args[i].equalsIgnoreCase("--replay") && i + 1 < args.length)
+                replay = new File(args[++i]);
+            else
+                throw new IllegalArgumentException("Unknown index option " + args[i]);
+        }
+        if (record != null && replay != null)
+            throw new IllegalArgumentException("Can't record and replay at the same time");
+
+        if (record == null && replay == null)
+        {
+            new IndexWorker().doWork(incremental);
+            return;
+        }
+        try (CrawlArchive archive = record != null
+            ? CrawlArchive.forRecording(record)
+            : CrawlArchive.forReplay(replay))
+        {
+            Fetcher fetcher = record != null
+                ? new RecordingFetcher(archive)
+                : new ReplayFetcher(archive);
+            new IndexWorker(fetcher).doWork(incremental);
+        }
     }
     private static void startWeb() throws Exception
     {
+        // One feed per list, the first one is also served at /books
+        List<CrawlList> lists = CrawlList.load();
+        String defaultCategory = lists.get(0)._name;
+        SnapshotStore store = SnapshotStore.fromEnv();
+        SearchIndex search = new SearchIndex();
+        Map<String, FeedCache> feeds = new LinkedHashMap<>();
+        Map<String, FeedCache> trending = new LinkedHashMap<>();
+        int trendingSize = Env.getInt("TRENDING_FEED_SIZE", 20);
+        for (CrawlList list : lists)
+        {
+            String link = list._name.equals(defaultCategory) ? RssWriter.LINK : RssWriter.LINK + "/" + list._name;
+            FeedCache feed = new FeedCache(list._name, list._title, link, store,
+                books -> search.update(list._name, books));
+            feeds.put(list._name, feed);
+            trending.put(list._name, feed.trending("Trending: " + list._title, link + "/trending", trendingSize));
+        }
+
+        new BookChangeListener(() -> {
+            MetricsStore.load();
+            feeds.values().forEach(FeedCache::invalidate);
+            trending.values().forEach(FeedCache::invalidate);
+        }).start();
+
+        // Optionally crawl from here too, instead of from a separate "index" process
+        long indexInterval = Env.getLong("INDEX_INTERVAL_MINUTES", 0);
+        if (indexInterval > 0)
+        {
+            new IndexScheduler(indexInterval, TimeUnit.MINUTES,
+                Env.getBoolean("INDEX_INCREMENTAL", false),
+                index -> index.forEach((category, books) -> {
+                    FeedCache feed = feeds.get(category);
+                    if (feed != null)
+                    {
+                        feed.publish(books);
+                        trending.get(category).publish(books);
+                    }
+                })).start();
+        }
+
+        DatabaseExecutor database = new DatabaseExecutor();
+
         RatpackServer
             .start(b -> b
             .serverConfig(s -> s
@@ -45,11 +136,15 @@ public class Main
                             ctx.redirect(301, "/");
                         })
                         .get(ctx -> ctx.render(groovyTemplate("index.html")))
-                        .get("books", ctx -> {
-                            ctx.getResponse().contentType("text/xml");
-                            ctx.getResponse().send(
-                                new RssGenerator().createRss(
-                                    new BookLoader().loadBooks()));
+                        .get("books", new FeedHandler(feeds, defaultCategory, database))
+                        .get("books/trending", new FeedHandler(trending, defaultCategory, database))
+                        .get("books/search", new SearchHandler(feeds, defaultCategory, search))
+                        .get("books/:category", new FeedHandler(feeds, defaultCategory, database))
+                        .get("books/:category/trending", new FeedHandler(trending, defaultCategory, database))
+                        .get("books/:category/search", new SearchHandler(feeds, defaultCategory, search))
+                        .get("metrics", ctx -> {
+                            ctx.getResponse().contentType("text/plain; version=0.0.4");
+                            ctx.getResponse().send(Metrics.write());
                         });
                 }
             )
@@ -1,6 +1,7 @@
 package com.github.jsbannis.data;
 
 import java.time.Instant;
+import java.util.List;
 
 /**
  * Created by jared on 3/16/2016.
@@ -17,11 +18,36 @@ public class Book
     public final String _image;
     public final String _detailedInfo;
     public final Instant _created;
+    /**
+     * How fast the book has been climbing its list lately, see
+     * {@link BookQuery#trending(List, int)}.
+     */
+    public final double _trend;
+    /**
+     * The price in cents, the rating in tenths of a star and the number of
+     * reviews, each {@link BookFields#UNKNOWN} if it isn't known.
+     */
+    public final int _priceCents;
+    public final short _rating;
+    public final int _reviewCount;
 
+    /**
+     * Reads the price and rating from their text, with the number of reviews
+     * unknown.
+     */
     public Book(
         String asin, String rank, String title, String byline, String link,
         String reviews, String price, String image, String detailedInfo,
         Instant created)
+    {
+        this(asin, rank, title, byline, link, reviews, price, image, detailedInfo, created, 0,
+            BookFields.parsePriceCents(price), BookFields.parseRating(reviews), BookFields.UNKNOWN);
+    }
+
+    public Book(
+        String asin, String rank, String title, String byline, String link,
+        String reviews, String price, String image, String detailedInfo,
+        Instant created, double trend, int priceCents, short rating, int reviewCount)
     {
         _rank = rank;
         _title = title;
@@ -33,6 +59,10 @@ public class Book
         _detailedInfo = detailedInfo;
         _asin = asin;
         _created = created;
+        _trend = trend;
+        _priceCents = priceCents;
+        _rating = rating;
+        _reviewCount = reviewCount;
     }
 
     @Override
@@ -42,11 +72,15 @@ public class Book
             "_asin='" + _asin + '\'' +
             "_created'" + _created.toString() + '\'' +
             " _rank='" + _rank + '\'' +
+            ", _trend=" + _trend +
             ", _title='" + _title + '\'' +
             ", _byline='" + _byline + '\'' +
             ", _link='" + _link + '\'' +
             ", _reviews='" + _reviews + '\'' +
             ", _price='" + _price + '\'' +
+            ", _priceCents=" + _priceCents +
+            ", _rating=" + _rating +
+            ", _reviewCount=" + _reviewCount +
             ", _image='" + _image + '\'' +
             ", _detailedInfo='" + _detailedInfo + '\'' +
             '}';
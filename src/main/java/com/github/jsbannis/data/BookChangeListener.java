@@ -0,0 +1,128 @@
+package com.github.jsbannis.data;
+
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.heroku.sdk.jdbc.DatabaseUrl;
+
+/**
+ * Background thread that tells the web process when the index has changed.
+ * <p>
+ * The indexer sends a NOTIFY on {@link #CHANNEL} as part of its transaction.
+ * Notifications are lost while we are disconnected, so every time we
+ * (re)connect, or when nothing has been heard for {@link #FALLBACK_INTERVAL},
+ * we fire the callback anyway.
+ * <p>
+ * Changes made by an {@code IndexWorker} in this process don't fire the
+ * callback; the worker hands its results over directly.
+ */
+public class BookChangeListener extends Thread
+{
+    private final static Logger LOG = LoggerFactory.getLogger(BookChangeListener.class);
+
+    public static final String CHANNEL = "books_changed";
+
+    /**
+     * Sent as the payload of our own notifications, which are ignored since
+     * whoever made the change already knows about it.
+     */
+    public static final String SOURCE = UUID.randomUUID().toString();
+
+    private static final long POLL_INTERVAL = TimeUnit.SECONDS.toMillis(5);
+    private static final long FALLBACK_INTERVAL = TimeUnit.MINUTES.toMillis(15);
+    private static final long RECONNECT_DELAY = TimeUnit.SECONDS.toMillis(30);
+
+    private final Runnable _onChange;
+    private long _lastChange = System.currentTimeMillis();
+
+    public BookChangeListener(Runnable onChange)
+    {
+        super("book-change-listener");
+        setDaemon(true);
+        _onChange = onChange;
+    }
+
+    @Override
+    public void run()
+    {
+        while (!isInterrupted())
+        {
+            try
+            {
+                listen();
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+            catch (Exception e)
+            {
+                LOG.warn("Lost connection while listening for index changes", e);
+            }
+
+            try
+            {
+                Thread.sleep(RECONNECT_DELAY);
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+        }
+    }
+
+    private void listen() throws Exception
+    {
+        try (Connection connection = DatabaseUrl.extract().getConnection();
+             Statement statement = connection.createStatement())
+        {
+            PGConnection pgConnection = connection.unwrap(PGConnection.class);
+            statement.execute("LISTEN " + CHANNEL);
+            LOG.info("Listening for index changes on {}", CHANNEL);
+            // We can't know what we missed while we weren't listening
+            changed();
+
+            while (!isInterrupted())
+            {
+                // The driver only reads notifications off the wire when it
+                // talks to the server, so poke it
+                statement.execute("SELECT 1");
+                PGNotification[] notifications = pgConnection.getNotifications();
+                if (notifications != null && notifications.length > 0)
+                {
+                    LOG.info("Received {} index change notification(s)", notifications.length);
+                    if (Arrays.stream(notifications).allMatch(n -> SOURCE.equals(n.getParameter())))
+                        _lastChange = System.currentTimeMillis();
+                    else
+                        changed();
+                }
+                else if (System.currentTimeMillis() - _lastChange > FALLBACK_INTERVAL)
+                {
+                    LOG.info("No index change heard in a while, refreshing anyway");
+                    changed();
+                }
+                Thread.sleep(POLL_INTERVAL);
+            }
+        }
+    }
+
+    private void changed()
+    {
+        _lastChange = System.currentTimeMillis();
+        try
+        {
+            _onChange.run();
+        }
+        catch (RuntimeException e)
+        {
+            LOG.warn("Index change callback failed", e);
+        }
+    }
+}
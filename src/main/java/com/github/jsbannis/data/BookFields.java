@@ -0,0 +1,84 @@
+package com.github.jsbannis.data;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reads the numbers out of the text a bestseller list shows for a book's
+ * price and reviews.
+ * <p>
+ * {@code IndexWorker.createTables} fills the columns of books indexed before
+ * these existed with SQL that follows the same rules.
+ */
+public class BookFields
+{
+    /**
+     * Stands for a number that couldn't be read.
+     */
+    public static final int UNKNOWN = -1;
+
+    private static final Pattern AMOUNT = Pattern.compile("\\d[\\d,]*(\\.\\d+)?");
+    private static final Pattern RATING = Pattern.compile("\\s*(\\d+(\\.\\d+)?)( out of 5 stars)?\\s*");
+    private static final Pattern COUNT = Pattern.compile("\\s*\\d[\\d,]*\\s*");
+
+    private BookFields()
+    {
+    }
+
+    /**
+     * @param price such as {@code $0.00}, {@code $1,299.99} or {@code Free}
+     * @return the price in cents, or {@link #UNKNOWN}.
+     */
+    public static int parsePriceCents(String price)
+    {
+        if (price == null)
+            return UNKNOWN;
+        if (price.trim().toLowerCase(Locale.ROOT).startsWith("free"))
+            return 0;
+        Matcher matcher = AMOUNT.matcher(price);
+        if (!matcher.find())
+            return UNKNOWN;
+        return toInt(new BigDecimal(matcher.group().replace(",", "")).movePointRight(2));
+    }
+
+    /**
+     * @param reviews such as {@code 4.5 out of 5 stars}, or just {@code 4.5}
+     * @return the rating in tenths of a star, or {@link #UNKNOWN}.
+     */
+    public static short parseRating(String reviews)
+    {
+        if (reviews == null)
+            return UNKNOWN;
+        Matcher matcher = RATING.matcher(reviews);
+        if (!matcher.matches())
+            return UNKNOWN;
+        int rating = toInt(new BigDecimal(matcher.group(1)).movePointRight(1));
+        return rating >= 0 && rating <= 50 ? (short) rating : UNKNOWN;
+    }
+
+    /**
+     * @param count such as {@code 1,234}
+     * @return the number, or {@link #UNKNOWN}.
+     */
+    public static int parseCount(String count)
+    {
+        if (count == null || !COUNT.matcher(count).matches())
+            return UNKNOWN;
+        return toInt(new BigDecimal(count.trim().replace(",", "")));
+    }
+
+    private static int toInt(BigDecimal value)
+    {
+        try
+        {
+            return value.setScale(0, RoundingMode.HALF_UP).intValueExact();
+        }
+        catch (ArithmeticException e)
+        {
+            return UNKNOWN;
+        }
+    }
+}
@@ -1,17 +1,18 @@
 package com.github.jsbannis.data;
 
+import java.io.IOException;
 import java.net.URISyntaxException;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import com.heroku.sdk.jdbc.DatabaseUrl;
+import com.github.jsbannis.Env;
 
 /**
  * @author Jared Bannister
@@ -20,37 +21,114 @@ public class BookLoader
 {
     private final static Logger LOG = LoggerFactory.getLogger(BookLoader.class);
 
-    public List<Book> loadBooks() throws URISyntaxException, SQLException
+    private static final int FETCH_SIZE = 100;
+
+    // Seconds before a read is cancelled rather than left to tie up a
+    // connection
+    private static final int QUERY_TIMEOUT = Env.getInt("DATABASE_QUERY_TIMEOUT", 10);
+
+    /**
+     * Receives books as they are read from the database.
+     */
+    public interface BookVisitor
     {
-        List<Book> ret = new ArrayList<>();
+        void visit(Book book) throws IOException;
+    }
 
-        LOG.debug("Connecting to database...");
-        Connection connection;
-        connection = DatabaseUrl.extract().getConnection();
-        LOG.debug("Connected {}", connection);
+    public List<Book> loadBooks(String category) throws URISyntaxException, SQLException, IOException
+    {
+        List<Book> ret = new ArrayList<>();
+        loadBooks(BookQuery.all(category), ret::add);
+        return ret;
+    }
 
+    /**
+     * Reads the books matching the query, newest first, handing each one to
+     * the visitor as soon as its row arrives rather than collecting them.
+     */
+    public void loadBooks(BookQuery query, BookVisitor visitor)
+        throws URISyntaxException, SQLException, IOException
+    {
         LOG.debug("Querying for books...");
-        Statement statement = connection.createStatement();
-        ResultSet resultSet = statement.executeQuery(
-            "SELECT * FROM books ORDER BY time DESC");
-        while(resultSet.next())
+        try (Connection connection = Database.getConnection())
         {
-            String asin = resultSet.getString("asin");
-            String title = resultSet.getString("title");
-            String byline = resultSet.getString("byline");
-            String link = resultSet.getString("link");
-            String review = resultSet.getString("review");
-            String price = resultSet.getString("price");
-            String image = resultSet.getString("image");
-            String detail = resultSet.getString("detail");
-            Timestamp created = resultSet.getTimestamp("time");
-            Book book = new Book(asin, "", title, byline, link, review, price, image, detail, created.toInstant());
-            ret.add(book);
-            LOG.debug("Adding book {}", book);
+            // The driver only uses a cursor (and honours the fetch size)
+            // inside a transaction
+            connection.setAutoCommit(false);
+            try (PreparedStatement statement = prepare(connection, query))
+            {
+                statement.setFetchSize(FETCH_SIZE);
+                statement.setQueryTimeout(QUERY_TIMEOUT);
+                try (ResultSet resultSet = statement.executeQuery())
+                {
+                    while(resultSet.next())
+                    {
+                        Book book = readBook(resultSet);
+                        LOG.debug("Adding book {}", book);
+                        visitor.visit(book);
+                    }
+                }
+            }
+            finally
+            {
+                connection.rollback();
+            }
         }
-        statement.close();
-        connection.close();
         LOG.debug("Done.");
-        return ret;
+    }
+
+    private static PreparedStatement prepare(Connection connection, BookQuery query)
+        throws SQLException
+    {
+        PreparedStatement statement = connection.prepareStatement(query.toSql());
+        int i = 1;
+        statement.setString(i++, query._category);
+        if (query._since != null)
+            statement.setTimestamp(i++, Timestamp.from(query._since));
+        if (query._maxPriceCents != BookFields.UNKNOWN)
+            statement.setInt(i++, query._maxPriceCents);
+        if (query._minRating != BookFields.UNKNOWN)
+            statement.setShort(i++, (short) query._minRating);
+        if (query._afterTime != null)
+        {
+            statement.setTimestamp(i++, Timestamp.from(query._afterTime));
+            statement.setString(i++, query._afterAsin);
+        }
+        if (query._limit > 0)
+            statement.setInt(i, query._limit);
+        return statement;
+    }
+
+    /**
+     * @return the book in the current row of a query on the books table.
+     */
+    public static Book readBook(ResultSet resultSet) throws SQLException
+    {
+        String asin = resultSet.getString("asin");
+        String title = resultSet.getString("title");
+        String byline = resultSet.getString("byline");
+        String link = resultSet.getString("link");
+        String review = resultSet.getString("review");
+        String price = resultSet.getString("price");
+        String image = resultSet.getString("image");
+        String detail = resultSet.getString("detail");
+        Timestamp created = resultSet.getTimestamp("time");
+        Object rank = resultSet.getObject("rank");
+        double trend = resultSet.getDouble("trend");
+        return new Book(asin, rank == null ? "" : rank.toString(), title, byline, link, review, price, image, detail,
+            created.toInstant(), trend,
+            getNumber(resultSet, "price_cents"),
+            (short) getNumber(resultSet, "rating"),
+            getNumber(resultSet, "review_count"));
+    }
+
+    /**
+     * @return the column's value, or {@link BookFields#UNKNOWN} if it is
+     * null.
+     */
+    private static int getNumber(ResultSet resultSet, String column) throws SQLException
+    {
+        Object value = resultSet.getObject(column);
+        return value == null ? BookFields.UNKNOWN : ((Number) value).intValue();
     }
 }
@@ -0,0 +1,265 @@
+package com.github.jsbannis.data;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Selects part of one category of the index, newest first: only books newer
+ * than {@code since}, costing at most {@code maxPrice} or rated at least
+ * {@code minRating}, only books after a keyset cursor, and at most
+ * {@code limit} of them.
+ */
+public class BookQuery
+{
+    public static final int MAX_LIMIT = 500;
+    /**
+     * The limit of a query that has other parameters but no limit, so no
+     * request reads a whole category into one response.
+     */
+    public static final int DEFAULT_LIMIT = 100;
+
+    private static final Pattern PRICE = Pattern.compile("\\d+(\\.\\d{1,2})?");
+    private static final Pattern RATING = Pattern.compile("\\d(\\.\\d)?");
+
+    /**
+     * The order queries return books in.
+     */
+    public static final Comparator<Book> NEWEST_FIRST = Comparator
+        .comparing((Book book) -> book._created)
+        .thenComparing(book -> book._asin)
+        .reversed();
+
+    /**
+     * Fastest climbers first, then by rank.
+     */
+    private static final Comparator<Book> TRENDING = Comparator
+        .comparingDouble((Book book) -> -book._trend)
+        .thenComparingInt(BookQuery::rankOf);
+
+    final String _category;
+    final Instant _since;
+    final Instant _afterTime;
+    final String _afterAsin;
+    final int _limit;
+    final int _maxPriceCents;
+    final int _minRating;
+
+    private BookQuery(String category, Instant since, Instant afterTime, String afterAsin, int limit,
+        int maxPriceCents, int minRating)
+    {
+        _category = category;
+        _since = since;
+        _afterTime = afterTime;
+        _afterAsin = afterAsin;
+        _limit = limit;
+        _maxPriceCents = maxPriceCents;
+        _minRating = minRating;
+    }
+
+    /**
+     * @return a query for every book in the category.
+     */
+    public static BookQuery all(String category)
+    {
+        return new BookQuery(category, null, null, null, 0, BookFields.UNKNOWN, BookFields.UNKNOWN);
+    }
+
+    /**
+     * Builds a query from request parameters, any of which may be null.
+     *
+     * @param category the category to read from
+     * @param limit maximum number of books, at most {@link #MAX_LIMIT};
+     * {@link #DEFAULT_LIMIT} if not given along with any other parameter
+     * @param cursor a value previously returned by {@link #cursorAfter(Book)}
+     * @param since an ISO-8601 instant
+     * @param maxPrice a price in dollars, such as {@code 0} or {@code 1.99}
+     * @param minRating stars out of 5, such as {@code 4.5}
+     * @throws IllegalArgumentException if a parameter can't be understood
+     */
+    public static BookQuery parse(String category, String limit, String cursor, String since,
+        String maxPrice, String minRating)
+    {
+        int parsedLimit = 0;
+        if (limit != null)
+        {
+            try
+            {
+                parsedLimit = Integer.parseInt(limit);
+            }
+            catch (NumberFormatException e)
+            {
+                throw new IllegalArgumentException("limit must be a number", e);
+            }
+            if (parsedLimit < 1 || parsedLimit > MAX_LIMIT)
+                throw new IllegalArgumentException("limit must be between 1 and " + MAX_LIMIT);
+        }
+
+        Instant afterTime = null;
+        String afterAsin = null;
+        if (cursor != null)
+        {
+            String decoded;
+            try
+            {
+                decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            }
+            catch (IllegalArgumentException e)
+            {
+                throw new IllegalArgumentException("Malformed cursor", e);
+            }
+            int split = decoded.indexOf(' ');
+            if (split < 0)
+                throw new IllegalArgumentException("Malformed cursor");
+            afterTime = parseInstant(decoded.substring(0, split), "cursor");
+            afterAsin = decoded.substring(split + 1);
+        }
+
+        // Not the lenient parsers for scraped text, which would find 5 in
+        // "-5" or "abc5"
+        int maxPriceCents = BookFields.UNKNOWN;
+        if (maxPrice != null)
+        {
+            maxPriceCents = parseDecimal(maxPrice, PRICE, 2, Integer.MAX_VALUE);
+            if (maxPriceCents == BookFields.UNKNOWN)
+                throw new IllegalArgumentException("maxPrice must be an amount such as 1.99");
+        }
+        int parsedMinRating = BookFields.UNKNOWN;
+        if (minRating != null)
+        {
+            parsedMinRating = parseDecimal(minRating, RATING, 1, 50);
+            if (parsedMinRating == BookFields.UNKNOWN)
+                throw new IllegalArgumentException("minRating must be a number of stars from 0 to 5");
+        }
+
+        if (parsedLimit == 0 && (cursor != null || since != null || maxPrice != null || minRating != null))
+            parsedLimit = DEFAULT_LIMIT;
+
+        return new BookQuery(category,
+            since == null ? null : parseInstant(since, "since"), afterTime, afterAsin, parsedLimit,
+            maxPriceCents, parsedMinRating);
+    }
+
+    /**
+     * @return the cursor for the page that follows the given book.
+     */
+    public static String cursorAfter(Book book)
+    {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(
+            (book._created + " " + book._asin).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Picks the books climbing their list fastest. A book's trend goes up by
+     * the places it gains on each index run, down by the places it loses,
+     * and fades by {@code TRENDING_DECAY_PERCENT} a run in between; a new book counts
+     * as having come from just below the bottom of the list.
+     *
+     * @param books one category of the index
+     * @param size most books to pick
+     * @return books with a positive trend, the fastest climbers first
+     */
+    public static List<Book> trending(List<Book> books, int size)
+    {
+        return books.stream()
+            .filter(book -> book._trend > 0)
+            .sorted(TRENDING)
+            .limit(size)
+            .collect(Collectors.toList());
+    }
+
+    private static int rankOf(Book book)
+    {
+        try
+        {
+            return Integer.parseInt(book._rank);
+        }
+        catch (NumberFormatException e)
+        {
+            return Integer.MAX_VALUE;
+        }
+    }
+
+    public boolean isAll()
+    {
+        return _since == null && _afterTime == null && _limit == 0
+            && _maxPriceCents == BookFields.UNKNOWN && _minRating == BookFields.UNKNOWN;
+    }
+
+    /**
+     * @return whether the book passes the query's filters, for books that
+     * didn't come from the database; the cursor and limit are ignored.
+     */
+    public boolean matches(Book book)
+    {
+        // Unknown prices and ratings are negative, so they never pass
+        return (_since == null || book._created.isAfter(_since))
+            && (_maxPriceCents == BookFields.UNKNOWN || (book._priceCents >= 0 && book._priceCents <= _maxPriceCents))
+            && (_minRating == BookFields.UNKNOWN || book._rating >= _minRating);
+    }
+
+    public String getCategory()
+    {
+        return _category;
+    }
+
+    public int getLimit()
+    {
+        return _limit;
+    }
+
+    String toSql()
+    {
+        StringBuilder sql = new StringBuilder("SELECT * FROM books WHERE category = ?");
+        if (_since != null)
+            sql.append(" AND \"time\" > ?");
+        if (_maxPriceCents != BookFields.UNKNOWN)
+            sql.append(" AND price_cents <= ?");
+        if (_minRating != BookFields.UNKNOWN)
+            sql.append(" AND rating >= ?");
+        if (_afterTime != null)
+            sql.append(" AND (\"time\", asin) < (?, ?)");
+        sql.append(" ORDER BY \"time\" DESC, asin DESC");
+        if (_limit > 0)
+            sql.append(" LIMIT ?");
+        return sql.toString();
+    }
+
+    /**
+     * @param scale decimal places to move the point right by
+     * @return the value as a whole number of hundredths or tenths, or
+     * {@link BookFields#UNKNOWN} if it doesn't match or is over the maximum.
+     */
+    private static int parseDecimal(String value, Pattern pattern, int scale, int max)
+    {
+        if (!pattern.matcher(value).matches())
+            return BookFields.UNKNOWN;
+        try
+        {
+            int parsed = new BigDecimal(value).movePointRight(scale).intValueExact();
+            return parsed <= max ? parsed : BookFields.UNKNOWN;
+        }
+        catch (ArithmeticException e)
+        {
+            return BookFields.UNKNOWN;
+        }
+    }
+
+    private static Instant parseInstant(String value, String name)
+    {
+        try
+        {
+            return Instant.parse(value);
+        }
+        catch (DateTimeParseException e)
+        {
+            throw new IllegalArgumentException(name + " must be an ISO-8601 instant", e);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.github.jsbannis.data;
+
+import java.net.URISyntaxException;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.github.jsbannis.Env;
+import com.github.jsbannis.metrics.Metrics;
+import com.heroku.sdk.jdbc.DatabaseUrl;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+
+/**
+ * The shared, bounded connection pool for {@code DATABASE_URL}.
+ * <p>
+ * Opening a connection to Heroku Postgres means a TCP and TLS handshake, so
+ * connections are reused, and the driver keeps prepared statements cached on
+ * each of them. Sizing can be tuned with:
+ * <ul>
+ * <li>{@code DATABASE_POOL_SIZE} - maximum number of connections</li>
+ * <li>{@code DATABASE_CONNECTION_TIMEOUT} - milliseconds to wait for a free connection</li>
+ * <li>{@code DATABASE_LEAK_DETECTION} - milliseconds a connection may be held before it is logged as a leak</li>
+ * <li>{@code DATABASE_STATEMENT_CACHE} - prepared statements cached per connection</li>
+ * </ul>
+ */
+public class Database
+{
+    private final static Logger LOG = LoggerFactory.getLogger(Database.class);
+
+    private static final PoolMetrics METRICS = new PoolMetrics();
+    private static HikariDataSource _dataSource;
+
+    private Database()
+    {
+    }
+
+    /**
+     * @return a pooled connection. Closing it hands it back to the pool.
+     */
+    public static Connection getConnection() throws URISyntaxException, SQLException
+    {
+        return getDataSource().getConnection();
+    }
+
+    public static PoolMetrics getMetrics()
+    {
+        return METRICS;
+    }
+
+    private static synchronized HikariDataSource getDataSource() throws URISyntaxException
+    {
+        if (_dataSource == null)
+        {
+            DatabaseUrl url = DatabaseUrl.extract();
+            HikariConfig config = new HikariConfig();
+            config.setPoolName("books");
+            config.setJdbcUrl(url.jdbcUrl());
+            config.setUsername(url.username());
+            config.setPassword(url.password());
+            config.setMaximumPoolSize(Env.getInt("DATABASE_POOL_SIZE", 5));
+            config.setMinimumIdle(1);
+            config.setConnectionTimeout(Env.getLong("DATABASE_CONNECTION_TIMEOUT", 5000));
+            config.setLeakDetectionThreshold(Env.getLong("DATABASE_LEAK_DETECTION", 60000));
+            config.addDataSourceProperty("prepareThreshold", 1);
+            config.addDataSourceProperty("preparedStatementCacheQueries",
+                Env.getInt("DATABASE_STATEMENT_CACHE", 64));
+            config.setMetricsTrackerFactory(METRICS);
+            LOG.info("Opening connection pool to {}:{} with up to {} connections",
+                url.host(), url.port(), config.getMaximumPoolSize());
+            _dataSource = new HikariDataSource(config);
+
+            Metrics.gauge("db_pool_active", "Connections in use", METRICS::getActive);
+            Metrics.gauge("db_pool_idle", "Connections waiting in the pool", METRICS::getIdle);
+            Metrics.gauge("db_pool_pending", "Threads waiting for a connection", METRICS::getPending);
+            Metrics.counter("db_pool_acquired_total", "Connections handed out", METRICS::getAcquired);
+            Metrics.counter("db_pool_wait_seconds_total", "Time spent waiting for connections",
+                () -> METRICS.getWaitNanos() / 1e9);
+            Metrics.counter("db_pool_timeouts_total", "Requests for a connection that timed out",
+                METRICS::getTimeouts);
+        }
+        return _dataSource;
+    }
+}
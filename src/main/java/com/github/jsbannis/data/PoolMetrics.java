@@ -0,0 +1,97 @@
+package com.github.jsbannis.data;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.zaxxer.hikari.metrics.MetricsTracker;
+import com.zaxxer.hikari.metrics.MetricsTrackerFactory;
+import com.zaxxer.hikari.metrics.PoolStats;
+
+/**
+ * Keeps track of how long callers wait for a pooled connection and how busy
+ * the pool is.
+ */
+public class PoolMetrics implements MetricsTrackerFactory
+{
+    private final LongAdder _acquired = new LongAdder();
+    private final LongAdder _waitNanos = new LongAdder();
+    private final LongAccumulator _maxWaitNanos = new LongAccumulator(Math::max, 0);
+    private final LongAdder _timeouts = new LongAdder();
+    private volatile PoolStats _stats;
+
+    @Override
+    public MetricsTracker create(String poolName, PoolStats poolStats)
+    {
+        _stats = poolStats;
+        return new MetricsTracker()
+        {
+            @Override
+            public void recordConnectionAcquiredNanos(long elapsedAcquiredNanos)
+            {
+                _acquired.increment();
+                _waitNanos.add(elapsedAcquiredNanos);
+                _maxWaitNanos.accumulate(elapsedAcquiredNanos);
+            }
+
+            @Override
+            public void recordConnectionTimeout()
+            {
+                _timeouts.increment();
+            }
+        };
+    }
+
+    public long getAcquired()
+    {
+        return _acquired.sum();
+    }
+
+    public long getWaitNanos()
+    {
+        return _waitNanos.sum();
+    }
+
+    public long getMaxWaitNanos()
+    {
+        return _maxWaitNanos.get();
+    }
+
+    public long getTimeouts()
+    {
+        return _timeouts.sum();
+    }
+
+    public int getActive()
+    {
+        PoolStats stats = _stats;
+        return stats == null ? 0 : stats.getActiveConnections();
+    }
+
+    public int getIdle()
+    {
+        PoolStats stats = _stats;
+        return stats == null ? 0 : stats.getIdleConnections();
+    }
+
+    public int getPending()
+    {
+        PoolStats stats = _stats;
+        return stats == null ? 0 : stats.getPendingThreads();
+    }
+
+    @Override
+    public String toString()
+    {
+        long acquired = getAcquired();
+        return "PoolMetrics{" +
+            "active=" + getActive() +
+            ", idle=" + getIdle() +
+            ", pending=" + getPending() +
+            ", acquired=" + acquired +
+            ", avgWaitMs=" + (acquired == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(getWaitNanos() / acquired)) +
+            ", maxWaitMs=" + TimeUnit.NANOSECONDS.toMillis(getMaxWaitNanos()) +
+            ", timeouts=" + getTimeouts() +
+            '}';
+    }
+}
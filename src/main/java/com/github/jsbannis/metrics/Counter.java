@@ -0,0 +1,30 @@
+package com.github.jsbannis.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A count that only goes up.
+ */
+public class Counter
+{
+    private final LongAdder _count = new LongAdder();
+
+    Counter()
+    {
+    }
+
+    public void increment()
+    {
+        _count.increment();
+    }
+
+    public void add(long amount)
+    {
+        _count.add(amount);
+    }
+
+    public long get()
+    {
+        return _count.sum();
+    }
+}
@@ -0,0 +1,77 @@
+package com.github.jsbannis.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts observations into fixed buckets. Recording is a bucket search and
+ * two adds, with no locking.
+ */
+public class Histogram
+{
+    /**
+     * Bucket upper bounds for durations, in seconds.
+     */
+    static final double[] SECONDS = {
+        0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5,
+        1, 2.5, 5, 10, 30, 60, 120, 300};
+
+    /**
+     * Bucket upper bounds for sizes, in bytes.
+     */
+    static final double[] BYTES = {
+        1024, 4096, 16384, 65536, 262144, 1048576, 4194304, 16777216};
+
+    private final double[] _bounds;
+    private final LongAdder[] _counts;
+    private final DoubleAdder _sum = new DoubleAdder();
+
+    Histogram(double[] bounds)
+    {
+        _bounds = bounds;
+        _counts = new LongAdder[bounds.length + 1];
+        for (int i = 0; i < _counts.length; i++)
+            _counts[i] = new LongAdder();
+    }
+
+    public void observe(double value)
+    {
+        int i = 0;
+        while (i < _bounds.length && value > _bounds[i])
+            i++;
+        _counts[i].increment();
+        _sum.add(value);
+    }
+
+    /**
+     * Records the time since {@code start}, a {@link System#nanoTime()}
+     * reading, in seconds.
+     */
+    public void observeSince(long start)
+    {
+        observeNanos(System.nanoTime() - start);
+    }
+
+    public void observeNanos(long nanos)
+    {
+        observe(nanos / (double) TimeUnit.SECONDS.toNanos(1));
+    }
+
+    void write(StringBuilder out, String name, String labels)
+    {
+        long cumulative = 0;
+        for (int i = 0; i < _counts.length; i++)
+        {
+            cumulative += _counts[i].sum();
+            String le = i < _bounds.length ? Metrics.format(_bounds[i]) : "+Inf";
+            out.append(name).append("_bucket{")
+                .append(labels).append(labels.isEmpty() ? "" : ",")
+                .append("le=\"").append(le).append("\"} ")
+                .append(cumulative).append('\n');
+        }
+        String braces = labels.isEmpty() ? "" : "{" + labels + "}";
+        out.append(name).append("_sum").append(braces).append(' ').append(Metrics.format(_sum.sum())).append('\n');
+        out.append(name).append("_count").append(braces).append(' ').append(cumulative).append('\n');
+    }
+}
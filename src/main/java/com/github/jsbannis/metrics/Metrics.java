@@ -0,0 +1,188 @@
+package com.github.jsbannis.metrics;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.DoubleSupplier;
+import java.util.function.Function;
+
+/**
+ * The process wide set of metrics, written out in the Prometheus text
+ * format.
+ * <p>
+ * Metrics are looked up by name and label pairs, and created the first time
+ * they are asked for, so callers that are on a hot path should hold on to
+ * what they get back. Metrics pushed by another process (see
+ * {@link MetricsStore}) are written after our own, leaving out any family we
+ * also have.
+ */
+public class Metrics
+{
+    private static final Map<String, Family<?>> FAMILIES = new ConcurrentSkipListMap<>();
+    private static volatile String _pushed = "";
+
+    private Metrics()
+    {
+    }
+
+    /**
+     * @param labels alternating label names and values
+     */
+    public static Histogram timer(String name, String help, String... labels)
+    {
+        return histogram(name, help, Histogram.SECONDS, labels);
+    }
+
+    public static Histogram sizes(String name, String help, String... labels)
+    {
+        return histogram(name, help, Histogram.BYTES, labels);
+    }
+
+    public static Counter counter(String name, String help, String... labels)
+    {
+        return family(name, help, "counter", Counter.class).get(labels, key -> new Counter());
+    }
+
+    /**
+     * A counter kept somewhere else, read whenever the metrics are written.
+     *
+     * @param value must never go down
+     */
+    public static void counter(String name, String help, DoubleSupplier value, String... labels)
+    {
+        family(name, help, "counter", DoubleSupplier.class).put(labels, value);
+    }
+
+    public static void gauge(String name, String help, DoubleSupplier value, String... labels)
+    {
+        family(name, help, "gauge", DoubleSupplier.class).put(labels, value);
+    }
+
+    /**
+     * Replaces the metrics last pushed by the indexer.
+     */
+    public static void setPushed(String text)
+    {
+        _pushed = text == null ? "" : text;
+    }
+
+    /**
+     * @return our own metrics, without any pushed ones.
+     */
+    public static String writeLocal()
+    {
+        StringBuilder out = new StringBuilder();
+        for (Family<?> family : FAMILIES.values())
+            family.write(out);
+        return out.toString();
+    }
+
+    public static String write()
+    {
+        StringBuilder out = new StringBuilder(writeLocal());
+        appendPushed(out, FAMILIES.keySet());
+        return out.toString();
+    }
+
+    private static Histogram histogram(String name, String help, double[] bounds, String... labels)
+    {
+        return family(name, help, "histogram", Histogram.class).get(labels, key -> new Histogram(bounds));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Family<T> family(String name, String help, String type, Class<T> kind)
+    {
+        Family<?> family = FAMILIES.computeIfAbsent(name, n -> new Family<>(name, help, type));
+        if (!family._type.equals(type))
+            throw new IllegalArgumentException("Metric " + name + " is a " + family._type + ", not a " + type);
+        return (Family<T>) family;
+    }
+
+    private static void appendPushed(StringBuilder out, Set<String> local)
+    {
+        boolean skip = false;
+        for (String line : _pushed.split("\n"))
+        {
+            if (line.startsWith("# HELP ") || line.startsWith("# TYPE "))
+            {
+                String name = line.substring(7).split(" ", 2)[0];
+                skip = local.contains(name);
+            }
+            if (!skip && !line.isEmpty())
+                out.append(line).append('\n');
+        }
+    }
+
+    static String format(double value)
+    {
+        if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15)
+            return Long.toString((long) value);
+        return Double.toString(value);
+    }
+
+    private static class Family<T>
+    {
+        final String _name;
+        final String _help;
+        final String _type;
+        final Map<String, T> _children = new ConcurrentHashMap<>();
+
+        Family(String name, String help, String type)
+        {
+            _name = name;
+            _help = help;
+            _type = type;
+        }
+
+        T get(String[] labels, Function<String, T> create)
+        {
+            return _children.computeIfAbsent(labels(labels), create);
+        }
+
+        void put(String[] labels, T value)
+        {
+            _children.put(labels(labels), value);
+        }
+
+        void write(StringBuilder out)
+        {
+            out.append("# HELP ").append(_name).append(' ').append(_help).append('\n');
+            out.append("# TYPE ").append(_name).append(' ').append(_type).append('\n');
+            for (Map.Entry<String, T> child : new TreeMap<>(_children).entrySet())
+            {
+                String labels = child.getKey();
+                T metric = child.getValue();
+                if (metric instanceof Histogram)
+                {
+                    ((Histogram) metric).write(out, _name, labels);
+                    continue;
+                }
+                double value = metric instanceof Counter
+                    ? ((Counter) metric).get()
+                    : ((DoubleSupplier) metric).getAsDouble();
+                out.append(_name);
+                if (!labels.isEmpty())
+                    out.append('{').append(labels).append('}');
+                out.append(' ').append(format(value)).append('\n');
+            }
+        }
+
+        private static String labels(String[] labels)
+        {
+            if (labels.length % 2 != 0)
+                throw new IllegalArgumentException("Labels must come in name, value pairs");
+            StringBuilder key = new StringBuilder();
+            for (int i = 0; i < labels.length; i += 2)
+            {
+                if (i > 0)
+                    key.append(',');
+                key.append(labels[i]).append("=\"")
+                    .append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+                    .append('"');
+            }
+            return key.toString();
+        }
+    }
+}
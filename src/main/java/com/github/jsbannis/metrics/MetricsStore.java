@@ -0,0 +1,70 @@
+package com.github.jsbannis.metrics;
+
+import java.net.URISyntaxException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.github.jsbannis.data.Database;
+
+/**
+ * Hands the indexer's metrics to the web process through the database, since
+ * the indexer exits as soon as it is done.
+ * <p>
+ * Only the latest run is kept, in the {@code index_metrics} table.
+ */
+public class MetricsStore
+{
+    private final static Logger LOG = LoggerFactory.getLogger(MetricsStore.class);
+
+    private MetricsStore()
+    {
+    }
+
+    /**
+     * Saves this process's metrics as part of the caller's transaction.
+     */
+    public static void push(Connection connection) throws SQLException
+    {
+        try (Statement statement = connection.createStatement())
+        {
+            statement.execute("CREATE TABLE IF NOT EXISTS index_metrics "
+                + "("
+                + "id integer NOT NULL, "
+                + "finished timestamp without time zone NOT NULL, "
+                + "metrics text NOT NULL, "
+                + "CONSTRAINT \"primary_index_metrics\" PRIMARY KEY (id)"
+                + ")");
+        }
+        try (PreparedStatement statement = connection.prepareStatement(
+            "INSERT INTO index_metrics VALUES (1, now(), ?) "
+                + "ON CONFLICT (id) DO UPDATE SET finished = excluded.finished, metrics = excluded.metrics"))
+        {
+            statement.setString(1, Metrics.writeLocal());
+            statement.executeUpdate();
+        }
+    }
+
+    /**
+     * Loads the metrics of the last index run into {@link Metrics}.
+     */
+    public static void load()
+    {
+        try (Connection connection = Database.getConnection();
+             Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery(
+                 "SELECT metrics FROM index_metrics WHERE id = 1"))
+        {
+            Metrics.setPushed(resultSet.next() ? resultSet.getString("metrics") : "");
+        }
+        catch (URISyntaxException | SQLException e)
+        {
+            // Most likely the indexer hasn't run yet
+            LOG.info("Could not load index metrics: {}", e.getMessage());
+        }
+    }
+}
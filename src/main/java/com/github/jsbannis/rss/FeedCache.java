@@ -0,0 +1,274 @@
+package com.github.jsbannis.rss;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.github.jsbannis.data.Book;
+import com.github.jsbannis.data.BookLoader;
+import com.github.jsbannis.data.BookQuery;
+import com.github.jsbannis.metrics.Histogram;
+import com.github.jsbannis.metrics.Metrics;
+
+/**
+ * Holds the rendered feed of one category in memory so requests don't each hit the database.
+ * <p>
+ * The snapshot is rebuilt when {@link #invalidate()} is called, or from
+ * books handed over with {@link #publish(List)}. While a rebuild is running
+ * the previous snapshot keeps being served, and only one rebuild runs at a
+ * time no matter how many callers ask for one. Each book's item is kept
+ * encoded between rebuilds, so a rebuild only has to encode new books.
+ * <p>
+ * Every snapshot built is also saved to a {@link SnapshotStore}, and the
+ * saved one is served from startup until the first rebuild, which checks it
+ * against the database, is done.
+ */
+public class FeedCache
+{
+    private final static Logger LOG = LoggerFactory.getLogger(FeedCache.class);
+
+    private static final Histogram LOAD_TIME = Metrics.timer(
+        "feed_load_seconds", "Time to read the books for a feed rebuild");
+    private static final Histogram RENDER_TIME = Metrics.timer(
+        "feed_render_seconds", "Time to render the feed on a rebuild");
+
+    private final String _category;
+    private final String _name;
+    private final UnaryOperator<List<Book>> _select;
+    private final Consumer<List<Book>> _onLoad;
+    private final String _title;
+    private final String _link;
+    private final AtomicReference<FeedSnapshot> _snapshot = new AtomicReference<>();
+    private final AtomicReference<CompletableFuture<FeedSnapshot>> _refresh = new AtomicReference<>();
+    private final AtomicBoolean _stale = new AtomicBoolean();
+    private final AtomicReference<List<Book>> _published = new AtomicReference<>();
+    private final ItemCache _items = new ItemCache();
+    private final SnapshotStore _store;
+
+    /**
+     * @param category the category of books in the feed
+     * @param title title of the feed
+     * @param link where the feed is served
+     */
+    public FeedCache(String category, String title, String link)
+    {
+        this(category, title, link, SnapshotStore.DISABLED);
+    }
+
+    /**
+     * @param store where snapshots are saved, and the last one restored from
+     */
+    public FeedCache(String category, String title, String link, SnapshotStore store)
+    {
+        this(category, title, link, store, books -> { });
+    }
+
+    /**
+     * @param onLoad given the whole category on every rebuild, before the
+     * feed is rendered
+     */
+    public FeedCache(String category, String title, String link, SnapshotStore store, Consumer<List<Book>> onLoad)
+    {
+        this(category, category, UnaryOperator.identity(), onLoad, title, link, store);
+    }
+
+    /**
+     * @param name tells the feed apart from others of the same category
+     * @param select picks the books in the feed, in order, from the whole
+     * category
+     */
+    private FeedCache(String category, String name, UnaryOperator<List<Book>> select, Consumer<List<Book>> onLoad,
+        String title, String link, SnapshotStore store)
+    {
+        _category = category;
+        _name = name;
+        _select = select;
+        _onLoad = onLoad;
+        _title = title;
+        _link = link;
+        _store = store;
+        _snapshot.set(store.load(name, _items).orElse(null));
+    }
+
+    /**
+     * @return a feed of the books in this one's category that are climbing
+     * their list fastest, see {@link BookQuery#trending(List, int)}.
+     */
+    public FeedCache trending(String title, String link, int size)
+    {
+        // Not a valid list name, so it can't clash with another category
+        return new FeedCache(_category, _category + ".trending", books -> BookQuery.trending(books, size),
+            books -> { }, title, link, _store);
+    }
+
+    public String getCategory()
+    {
+        return _category;
+    }
+
+    /**
+     * @return whether the feed has every book of its category, newest first,
+     * so that parts of it can be read with a {@link BookQuery}.
+     */
+    public boolean isWholeCategory()
+    {
+        return _name.equals(_category);
+    }
+
+    /**
+     * @return a writer for a feed with this one's title and link.
+     */
+    public RssWriter newWriter(OutputStream out)
+    {
+        return new RssWriter(out, _title, _link);
+    }
+
+    /**
+     * @param books some of this feed's category, in the order they should
+     * appear
+     * @return a feed of just those books, with this one's title and link.
+     */
+    public byte[] render(List<Book> books) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (RssWriter writer = newWriter(out))
+        {
+            for (Book book : books)
+                writer.writeItem(_items.get(book));
+            writer.finish();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @return the current snapshot, or null if none has been built yet.
+     */
+    public FeedSnapshot peek()
+    {
+        return _snapshot.get();
+    }
+
+    /**
+     * @return the current snapshot, building the first one if necessary.
+     */
+    public FeedSnapshot get() throws Exception
+    {
+        FeedSnapshot snapshot = _snapshot.get();
+        if (snapshot != null)
+            return snapshot;
+        return await(refresh());
+    }
+
+    /**
+     * Marks the current snapshot as stale and starts rebuilding it.
+     */
+    public void invalidate()
+    {
+        LOG.info("Feed {} invalidated, rebuilding...", _name);
+        _stale.set(true);
+        refresh();
+    }
+
+    /**
+     * Rebuilds the snapshot from the given books instead of reading them from
+     * the database.
+     *
+     * @param books the whole index, newest first
+     */
+    public void publish(List<Book> books)
+    {
+        LOG.info("Publishing {} books to feed {}, rebuilding...", books.size(), _name);
+        _published.set(books);
+        _stale.set(true);
+        refresh();
+    }
+
+    /**
+     * Starts a rebuild unless one is already in flight, in which case the
+     * caller shares it.
+     */
+    private CompletableFuture<FeedSnapshot> refresh()
+    {
+        CompletableFuture<FeedSnapshot> mine = new CompletableFuture<>();
+        CompletableFuture<FeedSnapshot> running = _refresh.get();
+        while (running == null)
+        {
+            if (_refresh.compareAndSet(null, mine))
+            {
+                build(mine);
+                return mine;
+            }
+            running = _refresh.get();
+        }
+        return running;
+    }
+
+    private void build(CompletableFuture<FeedSnapshot> future)
+    {
+        _stale.set(false);
+        try
+        {
+            FeedSnapshot snapshot = render();
+            _snapshot.set(snapshot);
+            LOG.info("Feed {} rebuilt ({} bytes).", _name, snapshot.getBody().length);
+            future.complete(snapshot);
+            _store.save(_name, snapshot, _items);
+        }
+        catch (Exception e)
+        {
+            LOG.warn("Failed to rebuild feed {}", _name, e);
+            future.completeExceptionally(e);
+        }
+        finally
+        {
+            _refresh.set(null);
+        }
+
+        // The index changed while we were reading it, so go again
+        if (_stale.get())
+            refresh();
+    }
+
+    private FeedSnapshot render() throws Exception
+    {
+        Instant built = Instant.now();
+        long start = System.nanoTime();
+        List<Book> books = _published.getAndSet(null);
+        if (books == null)
+        {
+            books = new BookLoader().loadBooks(_category);
+            LOAD_TIME.observeSince(start);
+        }
+        _onLoad.accept(books);
+        books = _select.apply(books);
+
+        start = System.nanoTime();
+        byte[] body = render(books);
+        _items.retain(books);
+        RENDER_TIME.observeSince(start);
+        return FeedSnapshot.of(body, built, _snapshot.get());
+    }
+
+    private static FeedSnapshot await(CompletableFuture<FeedSnapshot> future) throws Exception
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.github.jsbannis.rss;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * An immutable, fully rendered version of the feed.
+ * <p>
+ * Everything a response needs is worked out once when the snapshot is built:
+ * the content hash used as the ETag and a gzip encoding of the body, which
+ * has an ETag of its own since it is different bytes.
+ */
+public class FeedSnapshot
+{
+    private final byte[] _body;
+    private final byte[] _gzipBody;
+    private final String _etag;
+    private final String _gzipEtag;
+    private final Instant _built;
+    private final Instant _lastModified;
+
+    private FeedSnapshot(byte[] body, byte[] gzipBody, String etag, Instant built, Instant lastModified)
+    {
+        _body = body;
+        _gzipBody = gzipBody;
+        _etag = etag;
+        _gzipEtag = etag.substring(0, etag.length() - 1) + "-gzip\"";
+        _built = built;
+        _lastModified = lastModified;
+    }
+
+    /**
+     * @param previous the snapshot this one replaces, if any. When the content
+     * is unchanged its last modified time is carried over so clients don't
+     * re-download the same document.
+     */
+    public static FeedSnapshot of(byte[] body, Instant built, FeedSnapshot previous)
+    {
+        String etag = hash(body);
+        Instant lastModified = previous != null && previous._etag.equals(etag)
+            ? previous._lastModified
+            : built.truncatedTo(ChronoUnit.SECONDS); // HTTP dates have second precision
+        return new FeedSnapshot(body, gzip(body), etag, built, lastModified);
+    }
+
+    /**
+     * Recreates a snapshot saved by {@link SnapshotStore}, which already
+     * worked everything out.
+     */
+    static FeedSnapshot restore(byte[] body, byte[] gzipBody, String etag, Instant built, Instant lastModified)
+    {
+        return new FeedSnapshot(body, gzipBody, etag, built, lastModified);
+    }
+
+    /**
+     * @return the UTF-8 encoded RSS document. Callers must not modify it.
+     */
+    public byte[] getBody()
+    {
+        return _body;
+    }
+
+    /**
+     * @return the gzip encoding of {@link #getBody()}. Callers must not
+     * modify it.
+     */
+    public byte[] getGzipBody()
+    {
+        return _gzipBody;
+    }
+
+    /**
+     * @return a strong, quoted entity tag derived from the body.
+     */
+    public String getEtag()
+    {
+        return _etag;
+    }
+
+    /**
+     * @return the entity tag of {@link #getGzipBody()}, the one of the body
+     * with a suffix.
+     */
+    public String getGzipEtag()
+    {
+        return _gzipEtag;
+    }
+
+    public Instant getBuilt()
+    {
+        return _built;
+    }
+
+    /**
+     * @return when the content of the feed last changed.
+     */
+    public Instant getLastModified()
+    {
+        return _lastModified;
+    }
+
+    private static String hash(byte[] body)
+    {
+        try
+        {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(body);
+            StringBuilder etag = new StringBuilder("\"");
+            // Half the digest is plenty to tell feed versions apart
+            for (int i = 0; i < digest.length / 2; i++)
+                etag.append(String.format("%02x", digest[i]));
+            return etag.append('"').toString();
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] gzip(byte[] body)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 4);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out))
+        {
+            gzip.write(body);
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,68 @@
+package com.github.jsbannis.rss;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
+
+import com.github.jsbannis.data.Book;
+import com.github.jsbannis.metrics.Counter;
+import com.github.jsbannis.metrics.Metrics;
+
+/**
+ * Each book's {@code <item>} as it appears in the feed, by ASIN.
+ * <p>
+ * A book never changes once it is in the index, so its item only has to be
+ * encoded once, and a rebuild after an index run only encodes the new books.
+ */
+class ItemCache
+{
+    private static final Counter ENCODED = Metrics.counter(
+        "feed_items_encoded_total", "Feed items encoded, rather than taken from the cache");
+
+    private final Map<String, byte[]> _items = new ConcurrentHashMap<>();
+
+    /**
+     * @return the book's item, encoded by {@link RssWriter#encode(Book)}.
+     */
+    byte[] get(Book book)
+    {
+        return _items.computeIfAbsent(book._asin, asin -> {
+            ENCODED.increment();
+            return RssWriter.encode(book);
+        });
+    }
+
+    /**
+     * Adds an item encoded earlier, for {@link SnapshotStore}.
+     */
+    void put(String asin, byte[] item)
+    {
+        _items.put(asin, item);
+    }
+
+    void forEach(BiConsumer<String, byte[]> action)
+    {
+        _items.forEach(action);
+    }
+
+    /**
+     * Forgets the items of books that are no longer in the index.
+     *
+     * @param index every book in the index
+     */
+    void retain(Collection<Book> index)
+    {
+        Set<String> asins = index.stream()
+            .map(book -> book._asin)
+            .collect(Collectors.toSet());
+        _items.keySet().retainAll(asins);
+    }
+
+    int size()
+    {
+        return _items.size();
+    }
+}
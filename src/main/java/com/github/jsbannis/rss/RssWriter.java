@@ -0,0 +1,237 @@
+package com.github.jsbannis.rss;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+import com.github.jsbannis.data.Book;
+
+/**
+ * Writes the RSS 2.0 feed straight to a stream, one book at a time, so memory
+ * use doesn't depend on how many books there are.
+ * <p>
+ * The output matches what {@link RssGenerator} produces through ROME byte for
+ * byte, including its CRLF line endings and two space indent, with two
+ * exceptions: characters that aren't legal in XML are dropped instead of
+ * failing the whole feed, and the Dublin Core namespace is declared even
+ * when there are no items.
+ */
+public class RssWriter implements Closeable
+{
+    public static final String TITLE = "Amazon Top Free Kindle Books";
+    public static final String LINK = "https://pure-shelf-61800.herokuapp.com/books";
+    public static final String DESCRIPTION = "Amazon Top Free Kindle Books";
+
+    private static final String EOL = "\r\n";
+
+    private static final DateTimeFormatter RFC_822 = DateTimeFormatter
+        .ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US)
+        .withZone(ZoneOffset.UTC);
+    private static final DateTimeFormatter W3C = DateTimeFormatter
+        .ofPattern("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US)
+        .withZone(ZoneOffset.UTC);
+
+    private final OutputStream _out;
+    private final Writer _writer;
+    private final String _title;
+    private final String _link;
+    private boolean _started;
+
+    public RssWriter(OutputStream out)
+    {
+        this(out, TITLE, LINK);
+    }
+
+    /**
+     * @param title title, and description, of the channel
+     * @param link link of the channel
+     */
+    public RssWriter(OutputStream out, String title, String link)
+    {
+        _out = out;
+        _writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        _title = title;
+        _link = link;
+    }
+
+    /**
+     * @return the book's {@code <item>} element in UTF-8, as
+     * {@link #writeItem(Book)} would write it, for {@link #writeItem(byte[])}.
+     */
+    public static byte[] encode(Book book)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+        RssWriter writer = new RssWriter(out);
+        writer._started = true;
+        try
+        {
+            writer.writeItemElement(book);
+            writer._writer.flush();
+        }
+        catch (IOException e)
+        {
+            // Not from a ByteArrayOutputStream
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes every book and finishes the document.
+     */
+    public void write(Iterable<Book> books) throws IOException
+    {
+        for (Book book : books)
+            writeItem(book);
+        finish();
+    }
+
+    public void writeItem(Book book) throws IOException
+    {
+        start();
+        writeItemElement(book);
+    }
+
+    /**
+     * Writes an item previously made by {@link #encode(Book)}.
+     */
+    public void writeItem(byte[] item) throws IOException
+    {
+        start();
+        _writer.flush();
+        _out.write(item);
+    }
+
+    private void writeItemElement(Book book) throws IOException
+    {
+        _writer.write("    <item>" + EOL);
+        writeElement("title", book._title);
+        writeElement("link", book._link);
+        writeElement("description", RssGenerator.describe(book));
+        writeElement("pubDate", RFC_822.format(book._created));
+        writeElement("guid", book._link);
+        writeElement("dc:date", W3C.format(book._created));
+        _writer.write("    </item>" + EOL);
+    }
+
+    /**
+     * Closes the channel and flushes, but leaves the stream open.
+     */
+    public void finish() throws IOException
+    {
+        start();
+        _writer.write("  </channel>" + EOL);
+        _writer.write("</rss>" + EOL);
+        _writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        _writer.close();
+    }
+
+    private void start() throws IOException
+    {
+        if (_started)
+            return;
+        _started = true;
+        _writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + EOL);
+        _writer.write("<rss xmlns:dc=\"http://purl.org/dc/elements/1.1/\" version=\"2.0\">" + EOL);
+        _writer.write("  <channel>" + EOL);
+        writeChannelElement("title", _title);
+        writeChannelElement("link", _link);
+        writeChannelElement("description", _title);
+    }
+
+    private void writeChannelElement(String name, String value) throws IOException
+    {
+        _writer.write("    <" + name + ">");
+        writeEscaped(value, 0, value.length());
+        _writer.write("</" + name + ">" + EOL);
+    }
+
+    private void writeElement(String name, String value) throws IOException
+    {
+        // ROME leaves out elements with no value
+        if (value == null)
+            return;
+        int start = 0;
+        int end = value.length();
+        while (start < end && isXmlWhitespace(value.charAt(start)))
+            start++;
+        while (end > start && isXmlWhitespace(value.charAt(end - 1)))
+            end--;
+
+        _writer.write("      <");
+        _writer.write(name);
+        if (start == end)
+        {
+            _writer.write(" />" + EOL);
+            return;
+        }
+        _writer.write('>');
+        writeEscaped(value, start, end);
+        _writer.write("</");
+        _writer.write(name);
+        _writer.write('>' + EOL);
+    }
+
+    private void writeEscaped(String value, int start, int end) throws IOException
+    {
+        for (int i = start; i < end; i++)
+        {
+            char c = value.charAt(i);
+            switch (c)
+            {
+                case '&':
+                    _writer.write("&amp;");
+                    break;
+                case '<':
+                    _writer.write("&lt;");
+                    break;
+                case '>':
+                    _writer.write("&gt;");
+                    break;
+                case '\r':
+                    _writer.write("&#xD;");
+                    break;
+                case '\n':
+                    _writer.write(EOL);
+                    break;
+                case '\t':
+                    _writer.write(c);
+                    break;
+                default:
+                    if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(value.charAt(i + 1)))
+                    {
+                        _writer.write("&#x" + Integer.toHexString(Character.toCodePoint(c, value.charAt(++i))) + ";");
+                    }
+                    else if (isXmlChar(c))
+                    {
+                        _writer.write(c);
+                    }
+            }
+        }
+    }
+
+    private static boolean isXmlWhitespace(char c)
+    {
+        return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+    }
+
+    private static boolean isXmlChar(char c)
+    {
+        return (c >= 0x20 && c <= 0xD7FF) || (c >= 0xE000 && c <= 0xFFFD);
+    }
+}
@@ -0,0 +1,224 @@
+package com.github.jsbannis.rss;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.github.jsbannis.Env;
+import com.github.jsbannis.data.Book;
+
+/**
+ * Keeps each feed's latest snapshot, with its encoded items, in a local file
+ * so that a restarted web process can serve the feed before it has talked to
+ * the database.
+ * <p>
+ * A file is written under a temporary name and then moved into place, and
+ * starts with a format version and ends with a checksum. One that is
+ * missing, damaged or from another version is ignored.
+ * <p>
+ * Items are only restored if they were encoded the way {@link RssWriter}
+ * encodes them now, which is checked by rendering a sample book; otherwise a
+ * deploy that changes the items would keep serving the old ones for as long
+ * as their books stay in the feed.
+ */
+public class SnapshotStore
+{
+    private final static Logger LOG = LoggerFactory.getLogger(SnapshotStore.class);
+
+    public static final SnapshotStore DISABLED = new SnapshotStore(null);
+
+    private static final int MAGIC = 0xEBF0F33D;
+    private static final int VERSION = 2;
+    private static final long RENDERING = fingerprintRendering();
+
+    private final Path _dir;
+
+    /**
+     * @param dir where the files go, created if necessary
+     */
+    public SnapshotStore(Path dir)
+    {
+        _dir = dir;
+    }
+
+    /**
+     * @return a store in {@code FEED_SNAPSHOT_DIR}, by default under the
+     * temporary directory, or {@link #DISABLED} if that is set to nothing.
+     */
+    public static SnapshotStore fromEnv()
+    {
+        String dir = Env.getString("FEED_SNAPSHOT_DIR",
+            Paths.get(System.getProperty("java.io.tmpdir"), "ebookfeed").toString());
+        return dir.trim().isEmpty() ? DISABLED : new SnapshotStore(Paths.get(dir));
+    }
+
+    void save(String category, FeedSnapshot snapshot, ItemCache items)
+    {
+        if (_dir == null)
+            return;
+        long start = System.nanoTime();
+        Path file = file(category);
+        Path temp = _dir.resolve(file.getFileName() + ".tmp");
+        try
+        {
+            Files.createDirectories(_dir);
+            CRC32 crc = new CRC32();
+            try (OutputStream stream = Files.newOutputStream(temp))
+            {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(stream, crc)));
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                writeBytes(out, category.getBytes(StandardCharsets.UTF_8));
+                out.writeLong(RENDERING);
+                out.writeLong(snapshot.getBuilt().toEpochMilli());
+                out.writeLong(snapshot.getLastModified().toEpochMilli());
+                writeBytes(out, snapshot.getEtag().getBytes(StandardCharsets.UTF_8));
+                writeBytes(out, snapshot.getBody());
+                writeBytes(out, snapshot.getGzipBody());
+                out.writeInt(items.size());
+                items.forEach((asin, item) -> {
+                    try
+                    {
+                        writeBytes(out, asin.getBytes(StandardCharsets.UTF_8));
+                        writeBytes(out, item);
+                    }
+                    catch (IOException e)
+                    {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                out.flush();
+                // The checksum goes around what it covers, not through it
+                new DataOutputStream(stream).writeLong(crc.getValue());
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            LOG.debug("Saved feed {} to {} in {} ms", category, file, (System.nanoTime() - start) / 1000000);
+        }
+        catch (IOException | UncheckedIOException e)
+        {
+            LOG.warn("Could not save feed {} to {}", category, file, e);
+        }
+    }
+
+    /**
+     * Reads the saved snapshot of a feed, putting its items into
+     * {@code items}.
+     */
+    Optional<FeedSnapshot> load(String category, ItemCache items)
+    {
+        if (_dir == null)
+            return Optional.empty();
+        Path file = file(category);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+        {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.limit() < 16 || buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+            {
+                LOG.info("Ignoring {}, it isn't a snapshot this version can read", file);
+                return Optional.empty();
+            }
+
+            CRC32 crc = new CRC32();
+            int end = buffer.limit() - 8;
+            for (int i = 0; i < end; i++)
+                crc.update(buffer.get(i));
+            if (crc.getValue() != buffer.getLong(end))
+            {
+                LOG.warn("Ignoring {}, its checksum doesn't match", file);
+                return Optional.empty();
+            }
+            buffer.limit(end);
+
+            if (!category.equals(readString(buffer)))
+                return Optional.empty();
+            boolean sameRendering = buffer.getLong() == RENDERING;
+            Instant built = Instant.ofEpochMilli(buffer.getLong());
+            Instant lastModified = Instant.ofEpochMilli(buffer.getLong());
+            String etag = readString(buffer);
+            byte[] body = readBytes(buffer);
+            byte[] gzipBody = readBytes(buffer);
+            int count = 0;
+            if (sameRendering)
+            {
+                count = buffer.getInt();
+                for (int i = 0; i < count; i++)
+                    items.put(readString(buffer), readBytes(buffer));
+            }
+            else
+            {
+                // The body is still good enough until the first rebuild
+                LOG.info("Items in {} were rendered differently, they will be rendered again", file);
+            }
+
+            LOG.info("Restored feed {} built at {} with {} items from {}", category, built, count, file);
+            return Optional.of(FeedSnapshot.restore(body, gzipBody, etag, built, lastModified));
+        }
+        catch (NoSuchFileException e)
+        {
+            return Optional.empty();
+        }
+        catch (IOException | BufferUnderflowException | IllegalArgumentException e)
+        {
+            LOG.warn("Could not restore feed {} from {}", category, file, e);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * @return a checksum of a sample item, which changes whenever the way
+     * items are rendered does.
+     */
+    private static long fingerprintRendering()
+    {
+        CRC32 crc = new CRC32();
+        crc.update(RssWriter.encode(new Book("B000000000", "1", " Title & <More> ", "by Author",
+            "http://www.amazon.com/dp/B000000000?a=1&b=2", "4.5 out of 5 stars", "$0.00",
+            "https://images-na.ssl-images-amazon.com/images/I/1.jpg", "Line one\nline two\r\t\u00e9\ud83d\udcda",
+            Instant.EPOCH)));
+        return crc.getValue();
+    }
+
+    private Path file(String category)
+    {
+        return _dir.resolve("feed-" + category + ".snapshot");
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException
+    {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(MappedByteBuffer buffer)
+    {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining())
+            throw new IllegalArgumentException("Bad length " + length);
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static String readString(MappedByteBuffer buffer)
+    {
+        return new String(readBytes(buffer), StandardCharsets.UTF_8);
+    }
+}
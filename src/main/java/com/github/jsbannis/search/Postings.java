@@ -0,0 +1,116 @@
+package com.github.jsbannis.search;
+
+import java.util.Arrays;
+
+/**
+ * The ascending ids of the documents containing a term, stored as the
+ * differences between them in a variable length encoding, so most take one
+ * byte. Never changes once made.
+ */
+class Postings
+{
+    static final Postings EMPTY = new Postings(new byte[0], 0, -1);
+
+    private final byte[] _bytes;
+    private final int _count;
+    private final int _last;
+
+    private Postings(byte[] bytes, int count, int last)
+    {
+        _bytes = bytes;
+        _count = count;
+        _last = last;
+    }
+
+    int count()
+    {
+        return _count;
+    }
+
+    int sizeInBytes()
+    {
+        return _bytes.length;
+    }
+
+    /**
+     * @param ids ascending, and all greater than any already here
+     * @return these postings with the ids added on the end.
+     */
+    Postings append(int[] ids, int length)
+    {
+        byte[] bytes = Arrays.copyOf(_bytes, _bytes.length + length * 5);
+        int size = _bytes.length;
+        int last = _last;
+        for (int i = 0; i < length; i++)
+        {
+            int gap = ids[i] - last;
+            while ((gap & ~0x7F) != 0)
+            {
+                bytes[size++] = (byte) ((gap & 0x7F) | 0x80);
+                gap >>>= 7;
+            }
+            bytes[size++] = (byte) gap;
+            last = ids[i];
+        }
+        return new Postings(Arrays.copyOf(bytes, size), _count + length, last);
+    }
+
+    int[] toArray()
+    {
+        int[] ids = new int[_count];
+        int position = 0;
+        int id = -1;
+        for (int i = 0; i < _count; i++)
+        {
+            int gap = 0;
+            int shift = 0;
+            byte b;
+            do
+            {
+                b = _bytes[position++];
+                gap |= (b & 0x7F) << shift;
+                shift += 7;
+            }
+            while (b < 0);
+            id += gap;
+            ids[i] = id;
+        }
+        return ids;
+    }
+
+    /**
+     * @param ids ascending
+     * @return how many of the ids are also here, moved to the front of the
+     * array in order.
+     */
+    int retainAll(int[] ids, int length)
+    {
+        int kept = 0;
+        int position = 0;
+        int id = -1;
+        int decoded = 0;
+        for (int i = 0; i < length; i++)
+        {
+            while (id < ids[i] && decoded < _count)
+            {
+                int gap = 0;
+                int shift = 0;
+                byte b;
+                do
+                {
+                    b = _bytes[position++];
+                    gap |= (b & 0x7F) << shift;
+                    shift += 7;
+                }
+                while (b < 0);
+                id += gap;
+                decoded++;
+            }
+            if (id == ids[i])
+                ids[kept++] = ids[i];
+            else if (id < ids[i])
+                break;
+        }
+        return kept;
+    }
+}
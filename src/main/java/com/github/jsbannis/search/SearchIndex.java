@@ -0,0 +1,235 @@
+package com.github.jsbannis.search;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.github.jsbannis.data.Book;
+import com.github.jsbannis.data.BookQuery;
+import com.github.jsbannis.metrics.Histogram;
+import com.github.jsbannis.metrics.Metrics;
+
+/**
+ * Finds books by the words in their title, byline and description, from an
+ * inverted index of each category held in memory.
+ * <p>
+ * An index never changes once made. An update makes a new one that shares
+ * what didn't change with the last: new books get the next ids and are
+ * appended to the postings of their terms, and removed books are only marked
+ * as gone until they make up half the index, when it is built afresh.
+ * Searches read whichever index is current without waiting for updates.
+ */
+public class SearchIndex
+{
+    private final static Logger LOG = LoggerFactory.getLogger(SearchIndex.class);
+
+    private static final Histogram QUERY_TIME = Metrics.timer(
+        "search_query_seconds", "Time to look up a search in the index");
+
+    private final Map<String, Segment> _categories = new ConcurrentHashMap<>();
+
+    /**
+     * Brings a category's index in line with its books. Only one update of
+     * a category may run at a time.
+     *
+     * @param books everything in the category
+     */
+    public void update(String category, List<Book> books)
+    {
+        long start = System.nanoTime();
+        Segment current = _categories.get(category);
+        Segment updated = current == null ? Segment.build(books) : current.update(books);
+        if (updated == current)
+            return;
+        if (current == null)
+        {
+            Metrics.gauge("search_index_bytes", "Approximate memory used by the search index",
+                () -> _categories.get(category)._bytes, "category", category);
+            Metrics.gauge("search_index_terms", "Distinct terms in the search index",
+                () -> _categories.get(category)._terms.size(), "category", category);
+            Metrics.gauge("search_index_books", "Books in the search index",
+                () -> _categories.get(category)._live, "category", category);
+        }
+        _categories.put(category, updated);
+        LOG.info("Search index of {} updated in {} us: {} books, {} terms, about {} KB.", category,
+            (System.nanoTime() - start) / 1000, updated._live, updated._terms.size(), updated._bytes / 1024);
+    }
+
+    /**
+     * @return whether the category has been indexed yet.
+     */
+    public boolean isReady(String category)
+    {
+        return _categories.containsKey(category);
+    }
+
+    /**
+     * @return how many books the category's index holds, counting the ones
+     * marked as gone.
+     */
+    int size(String category)
+    {
+        Segment segment = _categories.get(category);
+        return segment == null ? 0 : segment._docs.length;
+    }
+
+    /**
+     * @param query words that must all appear, in any of the fields
+     * @param filter further test the books must pass
+     * @param limit most books to return
+     * @return the matching books, newest first.
+     */
+    public List<Book> search(String category, String query, Predicate<Book> filter, int limit)
+    {
+        long start = System.nanoTime();
+        Segment segment = _categories.get(category);
+        List<Book> found = segment == null ? Collections.emptyList() : segment.search(query, filter, limit);
+        QUERY_TIME.observeSince(start);
+        return found;
+    }
+
+    private static class Segment
+    {
+        final Book[] _docs;
+        final BitSet _gone;
+        final int _live;
+        final Map<String, Integer> _ids;
+        final Map<String, Postings> _terms;
+        final long _bytes;
+
+        Segment(Book[] docs, BitSet gone, Map<String, Integer> ids, Map<String, Postings> terms)
+        {
+            _docs = docs;
+            _gone = gone;
+            _live = docs.length - gone.cardinality();
+            _ids = ids;
+            _terms = terms;
+            _bytes = sizeInBytes();
+        }
+
+        static Segment build(List<Book> books)
+        {
+            return new Segment(new Book[0], new BitSet(), Collections.emptyMap(), Collections.emptyMap())
+                .update(books);
+        }
+
+        Segment update(List<Book> books)
+        {
+            Set<String> asins = new HashSet<>();
+            List<Book> added = new ArrayList<>();
+            for (Book book : books)
+            {
+                if (asins.add(book._asin) && !_ids.containsKey(book._asin))
+                    added.add(book);
+            }
+
+            BitSet gone = (BitSet) _gone.clone();
+            _ids.forEach((asin, id) -> {
+                if (!asins.contains(asin))
+                    gone.set(id);
+            });
+            if (added.isEmpty() && gone.equals(_gone))
+                return this;
+
+            // Searches would mostly be wading through books that are gone
+            if (gone.cardinality() > _docs.length / 2)
+                return build(books);
+            return append(added, gone);
+        }
+
+        private Segment append(List<Book> books, BitSet gone)
+        {
+            Book[] docs = Arrays.copyOf(_docs, _docs.length + books.size());
+            Map<String, Integer> ids = new HashMap<>(_ids);
+            // Only the books gone since the last update: one that went
+            // before may have come back under a new id
+            BitSet removed = (BitSet) gone.clone();
+            removed.andNot(_gone);
+            for (int id = removed.nextSetBit(0); id >= 0; id = removed.nextSetBit(id + 1))
+                ids.remove(docs[id]._asin);
+
+            // New ids for each term, in order, so each term's postings are
+            // copied only once
+            Map<String, int[]> newIds = new HashMap<>();
+            Map<String, Integer> newCounts = new HashMap<>();
+            int id = _docs.length;
+            for (Book book : books)
+            {
+                docs[id] = book;
+                ids.put(book._asin, id);
+                for (String term : Tokenizer.terms(book._title, book._byline, book._detailedInfo))
+                {
+                    int count = newCounts.getOrDefault(term, 0);
+                    int[] termIds = newIds.get(term);
+                    if (termIds == null || termIds.length == count)
+                        newIds.put(term, termIds = Arrays.copyOf(termIds == null ? new int[0] : termIds, count * 2 + 1));
+                    termIds[count] = id;
+                    newCounts.put(term, count + 1);
+                }
+                id++;
+            }
+
+            Map<String, Postings> terms = new HashMap<>(_terms);
+            newIds.forEach((term, termIds) ->
+                terms.put(term, terms.getOrDefault(term, Postings.EMPTY).append(termIds, newCounts.get(term))));
+            return new Segment(docs, gone, ids, terms);
+        }
+
+        List<Book> search(String query, Predicate<Book> filter, int limit)
+        {
+            List<Postings> postings = new ArrayList<>();
+            for (String term : Tokenizer.terms(query))
+            {
+                Postings termPostings = _terms.get(term);
+                if (termPostings == null)
+                    return Collections.emptyList();
+                postings.add(termPostings);
+            }
+            if (postings.isEmpty())
+                return Collections.emptyList();
+
+            // Start from the rarest term, it has the fewest to check
+            postings.sort((a, b) -> Integer.compare(a.count(), b.count()));
+            int[] ids = postings.get(0).toArray();
+            int length = ids.length;
+            for (int i = 1; i < postings.size() && length > 0; i++)
+                length = postings.get(i).retainAll(ids, length);
+
+            List<Book> found = new ArrayList<>();
+            for (int i = 0; i < length; i++)
+            {
+                if (!_gone.get(ids[i]) && filter.test(_docs[ids[i]]))
+                    found.add(_docs[ids[i]]);
+            }
+            return found.stream()
+                .sorted(BookQuery.NEWEST_FIRST)
+                .limit(limit)
+                .collect(Collectors.toList());
+        }
+
+        /**
+         * @return roughly how much memory this takes, counting the usual
+         * overhead of the objects involved on a 64 bit JVM.
+         */
+        private long sizeInBytes()
+        {
+            long bytes = 16 + 4L * _docs.length + _gone.size() / 8;
+            // A map entry, plus a string and its characters
+            bytes += _ids.size() * (32 + 40 + 2 * 10 + 16);
+            for (Map.Entry<String, Postings> term : _terms.entrySet())
+                bytes += 32 + 40 + 2 * term.getKey().length() + 32 + term.getValue().sizeInBytes();
+            return bytes;
+        }
+    }
+}
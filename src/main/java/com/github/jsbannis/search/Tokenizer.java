@@ -0,0 +1,50 @@
+package com.github.jsbannis.search;
+
+import java.text.Normalizer;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Splits text into the terms that are searched for: runs of letters and
+ * digits, in lower case and without accents, so "Pokémon" matches "pokemon".
+ */
+class Tokenizer
+{
+    private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+
+    private Tokenizer()
+    {
+    }
+
+    /**
+     * @return each term in the text once, in the order they first appear.
+     */
+    static Set<String> terms(String... texts)
+    {
+        Set<String> terms = new LinkedHashSet<>();
+        for (String text : texts)
+        {
+            if (text == null)
+                continue;
+            String folded = MARKS.matcher(Normalizer.normalize(text, Normalizer.Form.NFD)).replaceAll("")
+                .toLowerCase(Locale.ROOT);
+            int start = -1;
+            for (int i = 0; i <= folded.length(); i++)
+            {
+                boolean inTerm = i < folded.length() && Character.isLetterOrDigit(folded.charAt(i));
+                if (inTerm && start < 0)
+                {
+                    start = i;
+                }
+                else if (!inTerm && start >= 0)
+                {
+                    terms.add(folded.substring(start, i));
+                    start = -1;
+                }
+            }
+        }
+        return terms;
+    }
+}
@@ -0,0 +1,129 @@
+package com.github.jsbannis.web;
+
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientConnectionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.github.jsbannis.Env;
+import com.github.jsbannis.metrics.Counter;
+import com.github.jsbannis.metrics.Histogram;
+import com.github.jsbannis.metrics.Metrics;
+import ratpack.exec.Blocking;
+import ratpack.exec.Promise;
+import ratpack.func.Factory;
+
+/**
+ * Runs the database work of request handlers on Ratpack's blocking executor,
+ * so a slow query never holds up a compute thread.
+ * <p>
+ * At most {@code WEB_DB_CONCURRENCY} calls run at once and at most
+ * {@code WEB_DB_QUEUE} more wait for their turn. Beyond that, or after
+ * waiting {@code WEB_DB_TIMEOUT_MS}, calls fail with an
+ * {@link OverloadedException} so that handlers can shed the request.
+ */
+public class DatabaseExecutor
+{
+    private static final Histogram WAIT_TIME = Metrics.timer(
+        "web_db_wait_seconds", "Time requests waited for their turn at the database");
+    private static final Counter SHED = Metrics.counter(
+        "web_db_shed_total", "Requests turned away because the database was busy");
+
+    private final Semaphore _permits;
+    private final int _limit;
+    private final long _timeoutNanos;
+    private final AtomicInteger _pending = new AtomicInteger();
+
+    public DatabaseExecutor()
+    {
+        this(Env.getInt("WEB_DB_CONCURRENCY", 4), Env.getInt("WEB_DB_QUEUE", 32),
+            Env.getLong("WEB_DB_TIMEOUT_MS", 2000), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param concurrency calls run at once
+     * @param queue calls waiting to run
+     * @param timeout how long a call may wait to run
+     */
+    public DatabaseExecutor(int concurrency, int queue, long timeout, TimeUnit unit)
+    {
+        _permits = new Semaphore(concurrency, true);
+        _limit = concurrency + queue;
+        _timeoutNanos = unit.toNanos(timeout);
+        Metrics.gauge("web_db_pending", "Database calls running or waiting", _pending::get);
+    }
+
+    /**
+     * @return the result of {@code work}, which runs on a blocking thread
+     * once the promise is subscribed to.
+     * @throws OverloadedException if too many calls are already waiting
+     */
+    public <T> Promise<T> get(Factory<T> work) throws OverloadedException
+    {
+        if (_pending.incrementAndGet() > _limit)
+        {
+            _pending.decrementAndGet();
+            SHED.increment();
+            throw new OverloadedException("Too many database calls waiting");
+        }
+
+        long queued = System.nanoTime();
+        return Blocking.get(() -> {
+            try
+            {
+                long remaining = _timeoutNanos - (System.nanoTime() - queued);
+                if (!_permits.tryAcquire(remaining, TimeUnit.NANOSECONDS))
+                {
+                    SHED.increment();
+                    throw new OverloadedException("Timed out waiting for the database");
+                }
+                WAIT_TIME.observeSince(queued);
+                try
+                {
+                    return work.create();
+                }
+                finally
+                {
+                    _permits.release();
+                }
+            }
+            finally
+            {
+                _pending.decrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * @return whether the failure means we're overloaded rather than broken:
+     * we shed the call, the pool had no connection for it, or the query was
+     * cancelled for taking too long.
+     */
+    public static boolean isOverload(Throwable failure)
+    {
+        for (Throwable e = failure; e != null; e = e.getCause())
+        {
+            if (e instanceof OverloadedException
+                || e instanceof SQLTransientConnectionException
+                || e instanceof SQLTimeoutException)
+                return true;
+            // query_canceled, which is what a statement timeout looks like
+            if (e instanceof SQLException && "57014".equals(((SQLException) e).getSQLState()))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Thrown when a database call is turned away.
+     */
+    public static class OverloadedException extends Exception
+    {
+        public OverloadedException(String message)
+        {
+            super(message);
+        }
+    }
+}
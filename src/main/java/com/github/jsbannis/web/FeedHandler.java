@@ -0,0 +1,287 @@
+package com.github.jsbannis.web;
+
+import java.io.ByteArrayOutputStream;
+import java.net.URLEncoder;
+import java.util.Date;
+import java.util.Map;
+
+import com.github.jsbannis.data.Book;
+import com.github.jsbannis.data.BookLoader;
+import com.github.jsbannis.data.BookQuery;
+import com.github.jsbannis.metrics.Histogram;
+import com.github.jsbannis.metrics.Metrics;
+import com.github.jsbannis.rss.FeedCache;
+import com.github.jsbannis.rss.FeedSnapshot;
+import com.github.jsbannis.rss.RssWriter;
+import com.github.jsbannis.web.DatabaseExecutor.OverloadedException;
+import ratpack.handling.Context;
+import ratpack.handling.Handler;
+import ratpack.http.Headers;
+import ratpack.http.MutableHeaders;
+import ratpack.http.Response;
+import ratpack.util.MultiValueMap;
+
+/**
+ * Serves the cached feed of a category, from the {@code category} path token
+ * or the default one without it. Answers conditional requests with a 304 and
+ * sending the precompressed body to clients that accept gzip.
+ * <p>
+ * Requests with {@code limit}, {@code cursor}, {@code since},
+ * {@code maxPrice} or {@code minRating} parameters instead get just that part
+ * of the index, read straight from the database.
+ * Pages hold {@link BookQuery#DEFAULT_LIMIT} books unless a limit is given,
+ * and when a page is full, a {@code Link} header points at the next one. Feeds
+ * that aren't a whole category, such as the trending ones, can't be read
+ * that way.
+ * <p>
+ * Database reads go through a {@link DatabaseExecutor}, off the compute
+ * threads; when it is overloaded the request gets a 503.
+ */
+public class FeedHandler implements Handler
+{
+    private static final Histogram REQUEST_TIME = Metrics.timer(
+        "http_request_seconds", "Time to answer a request", "handler", "books");
+    private static final Histogram QUERY_TIME = Metrics.timer(
+        "feed_query_seconds", "Time to read and render a partial feed");
+
+    // Carried over to the next page
+    private static final String[] FILTERS = {"since", "maxPrice", "minRating"};
+
+    private final Map<String, FeedCache> _feeds;
+    private final String _defaultCategory;
+    private final DatabaseExecutor _database;
+
+    /**
+     * @param feeds every category's feed, by category
+     * @param defaultCategory the category served without a path token
+     * @param database runs anything that has to read the database
+     */
+    public FeedHandler(Map<String, FeedCache> feeds, String defaultCategory, DatabaseExecutor database)
+    {
+        _feeds = feeds;
+        _defaultCategory = defaultCategory;
+        _database = database;
+    }
+
+    @Override
+    public void handle(Context ctx) throws Exception
+    {
+        long start = System.nanoTime();
+        ctx.onClose(outcome -> REQUEST_TIME.observeSince(start));
+
+        FeedCache feed = _feeds.get(ctx.getPathTokens().getOrDefault("category", _defaultCategory));
+        if (feed == null)
+        {
+            ctx.clientError(404);
+            return;
+        }
+
+        MultiValueMap<String, String> params = ctx.getRequest().getQueryParams();
+        BookQuery query;
+        try
+        {
+            query = BookQuery.parse(feed.getCategory(), params.get("limit"), params.get("cursor"),
+                params.get("since"), params.get("maxPrice"), params.get("minRating"));
+        }
+        catch (IllegalArgumentException e)
+        {
+            ctx.getResponse().status(400).send(e.getMessage());
+            return;
+        }
+
+        if (!query.isAll() && !feed.isWholeCategory())
+        {
+            ctx.getResponse().status(400).send("This feed can't be read in parts");
+            return;
+        }
+
+        try
+        {
+            if (query.isAll())
+                sendSnapshot(ctx, feed);
+            else
+                sendQuery(ctx, feed, query);
+        }
+        catch (OverloadedException e)
+        {
+            fail(ctx, e);
+        }
+    }
+
+    /**
+     * Answers 503 when the database is too busy, so clients back off instead
+     * of piling on, and lets Ratpack deal with anything else.
+     */
+    private static void fail(Context ctx, Throwable e)
+    {
+        if (DatabaseExecutor.isOverload(e))
+        {
+            ctx.getResponse().getHeaders().set("Retry-After", "1");
+            ctx.getResponse().status(503).send(e.getMessage());
+        }
+        else
+        {
+            ctx.error(e);
+        }
+    }
+
+    private void sendQuery(Context ctx, FeedCache feed, BookQuery query) throws Exception
+    {
+        _database.get(() -> queryFeed(feed, query))
+            .onError(e -> fail(ctx, e))
+            .then(page -> {
+                Response response = ctx.getResponse();
+                if (query.getLimit() > 0 && page._count == query.getLimit())
+                {
+                    String next = "/" + ctx.getRequest().getPath() + "?limit=" + query.getLimit() + "&cursor=" + BookQuery.cursorAfter(page._last);
+                    for (String filter : FILTERS)
+                    {
+                        String value = ctx.getRequest().getQueryParams().get(filter);
+                        if (value != null)
+                            next += "&" + filter + "=" + URLEncoder.encode(value, "UTF-8");
+                    }
+                    response.getHeaders().set("Link", "<" + next + ">; rel=\"next\"");
+                }
+                response.contentType("text/xml");
+                response.send(page._body);
+            });
+    }
+
+    /**
+     * Runs on a blocking thread.
+     */
+    private static PartialFeed queryFeed(FeedCache feed, BookQuery query) throws Exception
+    {
+        long start = System.nanoTime();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PartialFeed page = new PartialFeed();
+        try (RssWriter writer = feed.newWriter(out))
+        {
+            new BookLoader().loadBooks(query, book -> {
+                writer.writeItem(book);
+                page._last = book;
+                page._count++;
+            });
+            writer.finish();
+        }
+        page._body = out.toByteArray();
+        QUERY_TIME.observeSince(start);
+        return page;
+    }
+
+    private void sendSnapshot(Context ctx, FeedCache feed) throws Exception
+    {
+        // Only the very first request for a feed has to wait for it to be
+        // built, everyone else gets the snapshot straight away
+        FeedSnapshot snapshot = feed.peek();
+        if (snapshot != null)
+            sendSnapshot(ctx, snapshot);
+        else
+            _database.get(feed::get).onError(e -> fail(ctx, e)).then(built -> sendSnapshot(ctx, built));
+    }
+
+    private static void sendSnapshot(Context ctx, FeedSnapshot snapshot)
+    {
+        Headers request = ctx.getRequest().getHeaders();
+        Response response = ctx.getResponse();
+
+        boolean gzip = acceptsGzip(request.get("Accept-Encoding"));
+        MutableHeaders headers = response.getHeaders();
+        headers.set("ETag", gzip ? snapshot.getGzipEtag() : snapshot.getEtag());
+        headers.setDate("Last-Modified", Date.from(snapshot.getLastModified()));
+        headers.set("Vary", "Accept-Encoding");
+
+        if (isNotModified(request, snapshot))
+        {
+            response.status(304).send();
+            return;
+        }
+
+        // Bodies are already compressed (or not worth it), so keep Ratpack
+        // from doing it again on every request
+        response.noCompress();
+        response.contentType("text/xml");
+        if (gzip)
+        {
+            headers.set("Content-Encoding", "gzip");
+            response.send(snapshot.getGzipBody());
+        }
+        else
+        {
+            response.send(snapshot.getBody());
+        }
+    }
+
+    /**
+     * One page of a partial feed.
+     */
+    private static class PartialFeed
+    {
+        byte[] _body;
+        Book _last;
+        int _count;
+    }
+
+    static boolean isNotModified(Headers request, FeedSnapshot snapshot)
+    {
+        // If-None-Match wins over If-Modified-Since when both are present.
+        // Either encoding's tag will do, the content is the same.
+        String ifNoneMatch = request.get("If-None-Match");
+        if (ifNoneMatch != null)
+            return matchesEtag(ifNoneMatch, snapshot.getEtag(), snapshot.getGzipEtag());
+
+        Date ifModifiedSince = request.getDate("If-Modified-Since");
+        return ifModifiedSince != null
+            && !snapshot.getLastModified().isAfter(ifModifiedSince.toInstant());
+    }
+
+    static boolean matchesEtag(String ifNoneMatch, String... etags)
+    {
+        for (String candidate : ifNoneMatch.split(","))
+        {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/"))
+                candidate = candidate.substring(2);
+            if (candidate.equals("*"))
+                return true;
+            for (String etag : etags)
+            {
+                if (candidate.equals(etag))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    static boolean acceptsGzip(String acceptEncoding)
+    {
+        if (acceptEncoding == null)
+            return false;
+        for (String coding : acceptEncoding.split(","))
+        {
+            String[] parts = coding.trim().split(";");
+            if (!parts[0].trim().equalsIgnoreCase("gzip"))
+                continue;
+            for (int i = 1; i < parts.length; i++)
+            {
+                String param = parts[i].trim();
+                if (param.startsWith("q=") && parseQuality(param.substring(2)) == 0)
+                    return false;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static double parseQuality(String value)
+    {
+        try
+        {
+            return Double.parseDouble(value.trim());
+        }
+        catch (NumberFormatException e)
+        {
+            return 1;
+        }
+    }
+}
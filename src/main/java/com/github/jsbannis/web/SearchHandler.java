@@ -0,0 +1,91 @@
+package com.github.jsbannis.web;
+
+import java.util.List;
+import java.util.Map;
+
+import com.github.jsbannis.data.Book;
+import com.github.jsbannis.data.BookQuery;
+import com.github.jsbannis.metrics.Histogram;
+import com.github.jsbannis.metrics.Metrics;
+import com.github.jsbannis.rss.FeedCache;
+import com.github.jsbannis.search.SearchIndex;
+import ratpack.handling.Context;
+import ratpack.handling.Handler;
+import ratpack.util.MultiValueMap;
+
+/**
+ * Serves a feed of the books in a category matching the words in the
+ * {@code q} parameter, newest first, which can be narrowed down with the
+ * {@code since}, {@code maxPrice} and {@code minRating} filters of a
+ * {@link BookQuery}. Everything comes from memory, so requests are answered
+ * on the compute thread.
+ */
+public class SearchHandler implements Handler
+{
+    private static final Histogram REQUEST_TIME = Metrics.timer(
+        "http_request_seconds", "Time to answer a request", "handler", "search");
+
+    private static final int MAX_QUERY_LENGTH = 200;
+    private static final int MAX_RESULTS = 100;
+
+    private final Map<String, FeedCache> _feeds;
+    private final String _defaultCategory;
+    private final SearchIndex _index;
+
+    /**
+     * @param feeds every category's feed, by category, which search results
+     * take their title and link from
+     * @param defaultCategory the category searched without a path token
+     */
+    public SearchHandler(Map<String, FeedCache> feeds, String defaultCategory, SearchIndex index)
+    {
+        _feeds = feeds;
+        _defaultCategory = defaultCategory;
+        _index = index;
+    }
+
+    @Override
+    public void handle(Context ctx) throws Exception
+    {
+        long start = System.nanoTime();
+        ctx.onClose(outcome -> REQUEST_TIME.observeSince(start));
+
+        FeedCache feed = _feeds.get(ctx.getPathTokens().getOrDefault("category", _defaultCategory));
+        if (feed == null)
+        {
+            ctx.clientError(404);
+            return;
+        }
+
+        MultiValueMap<String, String> params = ctx.getRequest().getQueryParams();
+        String query = params.get("q");
+        if (query == null || query.trim().isEmpty() || query.length() > MAX_QUERY_LENGTH)
+        {
+            ctx.getResponse().status(400).send("q must have between 1 and " + MAX_QUERY_LENGTH + " characters");
+            return;
+        }
+        BookQuery filters;
+        try
+        {
+            filters = BookQuery.parse(feed.getCategory(), null, null,
+                params.get("since"), params.get("maxPrice"), params.get("minRating"));
+        }
+        catch (IllegalArgumentException e)
+        {
+            ctx.getResponse().status(400).send(e.getMessage());
+            return;
+        }
+
+        // Only until the feed has been read from the database once
+        if (!_index.isReady(feed.getCategory()))
+        {
+            ctx.getResponse().getHeaders().set("Retry-After", "1");
+            ctx.getResponse().status(503).send("The search index isn't ready yet");
+            return;
+        }
+
+        List<Book> books = _index.search(feed.getCategory(), query, filters::matches, MAX_RESULTS);
+        ctx.getResponse().contentType("text/xml");
+        ctx.getResponse().send(feed.render(books));
+    }
+}
@@ -0,0 +1,97 @@
+package com.github.jsbannis.worker;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stops us sending requests to a host that keeps refusing them.
+ * <p>
+ * After {@code threshold} failures in a row the host's circuit opens and
+ * requests to it fail straight away. Once the cool down has passed a single
+ * request is let through; if it succeeds the circuit closes again, if not it
+ * stays open for another cool down.
+ */
+public class CircuitBreaker
+{
+    private final static Logger LOG = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    private final int _threshold;
+    private final long _coolDownNanos;
+    private final ConcurrentMap<String, Circuit> _hosts = new ConcurrentHashMap<>();
+
+    public CircuitBreaker(int threshold, long coolDown, TimeUnit unit)
+    {
+        _threshold = threshold;
+        _coolDownNanos = unit.toNanos(coolDown);
+    }
+
+    /**
+     * @return whether a request to the host may go ahead.
+     */
+    public boolean allow(String host)
+    {
+        return circuit(host).allow(_coolDownNanos);
+    }
+
+    public void success(String host)
+    {
+        circuit(host).success();
+    }
+
+    public void failure(String host)
+    {
+        if (circuit(host).failure(_threshold))
+            LOG.warn("Too many failed requests to {}, backing off for {} s",
+                host, TimeUnit.NANOSECONDS.toSeconds(_coolDownNanos));
+    }
+
+    private Circuit circuit(String host)
+    {
+        return _hosts.computeIfAbsent(host, h -> new Circuit());
+    }
+
+    private static class Circuit
+    {
+        private int _failures;
+        private long _openedAt;
+        private boolean _open;
+        private boolean _trial;
+
+        synchronized boolean allow(long coolDown)
+        {
+            if (!_open)
+                return true;
+            if (_trial || System.nanoTime() - _openedAt < coolDown)
+                return false;
+            _trial = true;
+            return true;
+        }
+
+        synchronized void success()
+        {
+            _failures = 0;
+            _open = false;
+            _trial = false;
+        }
+
+        /**
+         * @return whether this failure opened the circuit.
+         */
+        synchronized boolean failure(int threshold)
+        {
+            _failures++;
+            if (!_trial && _failures < threshold)
+                return false;
+            // A request that was already in flight when we opened
+            boolean alreadyOpen = _open && !_trial;
+            _open = true;
+            _openedAt = System.nanoTime();
+            _trial = false;
+            return !alreadyOpen;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.github.jsbannis.worker;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An append-only file of fetched pages, so a crawl can be replayed later
+ * without the network.
+ * <p>
+ * Each record is a magic number, the URL, HTTP status, charset, fetch time
+ * and the gzipped body. Opening an archive scans it once to index the
+ * records by URL; after that a lookup is a single seek. When a URL was
+ * fetched more than once the last copy wins.
+ */
+public class CrawlArchive implements Closeable
+{
+    private final static Logger LOG = LoggerFactory.getLogger(CrawlArchive.class);
+
+    private static final int MAGIC = 0xEBF0A001;
+
+    private final File _file;
+    private final Map<String, Long> _index = new HashMap<>();
+    private DataOutputStream _out;
+    private long _start;
+    private RandomAccessFile _in;
+
+    private CrawlArchive(File file)
+    {
+        _file = file;
+    }
+
+    /**
+     * Opens an archive to add pages to, creating it if needed.
+     */
+    public static CrawlArchive forRecording(File file) throws IOException
+    {
+        CrawlArchive archive = new CrawlArchive(file);
+        if (file.exists())
+        {
+            // Drop a record left half written by a crawl that died, or the
+            // new ones would land after it and be read as part of it
+            long end = archive.scan();
+            if (end < file.length())
+            {
+                try (RandomAccessFile out = new RandomAccessFile(file, "rw"))
+                {
+                    out.setLength(end);
+                }
+            }
+        }
+        archive._start = file.length();
+        archive._out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        LOG.info("Recording crawl to {}", file);
+        return archive;
+    }
+
+    /**
+     * Opens an existing archive to read pages from.
+     */
+    public static CrawlArchive forReplay(File file) throws IOException
+    {
+        CrawlArchive archive = new CrawlArchive(file);
+        archive.scan();
+        archive._in = new RandomAccessFile(file, "r");
+        LOG.info("Replaying {} pages from {}", archive._index.size(), file);
+        return archive;
+    }
+
+    public synchronized void append(Page page) throws IOException
+    {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(page._body.length / 4);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed))
+        {
+            gzip.write(page._body);
+        }
+
+        long offset = _start + _out.size();
+        _out.writeInt(MAGIC);
+        _out.writeUTF(page._url);
+        _out.writeInt(page._status);
+        _out.writeUTF(page._charset == null ? "" : page._charset);
+        _out.writeLong(System.currentTimeMillis());
+        _out.writeInt(compressed.size());
+        compressed.writeTo(_out);
+        // Keep what's on disk readable even if the crawl dies half way
+        _out.flush();
+        _index.put(page._url, offset);
+    }
+
+    public synchronized Optional<Page> get(String url) throws IOException
+    {
+        Long offset = _index.get(url);
+        if (offset == null)
+            return Optional.empty();
+        _in.seek(offset);
+        return Optional.of(readRecord(_in));
+    }
+
+    public synchronized int size()
+    {
+        return _index.size();
+    }
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        if (_out != null)
+            _out.close();
+        if (_in != null)
+            _in.close();
+    }
+
+    /**
+     * @return the offset just past the last whole record.
+     */
+    private long scan() throws IOException
+    {
+        try (RandomAccessFile in = new RandomAccessFile(_file, "r"))
+        {
+            long length = in.length();
+            long end = 0;
+            while (in.getFilePointer() < length)
+            {
+                long offset = in.getFilePointer();
+                try
+                {
+                    if (in.readInt() != MAGIC)
+                        throw new IOException("Corrupt crawl archive " + _file + " at offset " + offset);
+                    String url = in.readUTF();
+                    in.skipBytes(4); // status
+                    in.readUTF(); // charset
+                    in.skipBytes(8); // fetch time
+                    int size = in.readInt();
+                    if (in.getFilePointer() + size > length)
+                        throw new EOFException();
+                    in.seek(in.getFilePointer() + size);
+                    _index.put(url, offset);
+                    end = in.getFilePointer();
+                }
+                catch (EOFException e)
+                {
+                    LOG.warn("Ignoring truncated record at the end of {}", _file);
+                    break;
+                }
+            }
+            return end;
+        }
+    }
+
+    private static Page readRecord(RandomAccessFile in) throws IOException
+    {
+        if (in.readInt() != MAGIC)
+            throw new IOException("Corrupt crawl archive record");
+        String url = in.readUTF();
+        int status = in.readInt();
+        String charset = in.readUTF();
+        in.readLong();
+        byte[] compressed = new byte[in.readInt()];
+        in.readFully(compressed);
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream(compressed.length * 4);
+        try (InputStream gzip = new GZIPInputStream(new ByteArrayInputStream(compressed)))
+        {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = gzip.read(buffer)) > 0)
+                body.write(buffer, 0, read);
+        }
+        return new Page(url, status, charset.isEmpty() ? null : charset, body.toByteArray());
+    }
+}
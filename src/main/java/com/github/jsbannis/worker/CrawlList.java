@@ -0,0 +1,123 @@
+package com.github.jsbannis.worker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import com.github.jsbannis.Env;
+
+/**
+ * One bestseller list to crawl, which becomes one category of books and one
+ * feed.
+ */
+public class CrawlList
+{
+    /**
+     * The list crawled when none are configured, and the category books
+     * indexed before there were categories belong to.
+     */
+    public static final String DEFAULT_NAME = "kindle";
+    public static final String DEFAULT_TITLE = "Amazon Top Free Kindle Books";
+    public static final String BASE = "http://www.amazon.com/Best-Sellers-Kindle-Store/zgbs/digital-text/?_encoding=UTF8&tf=1&pg=";
+    private static final int PAGES = 5;
+
+    private static final String PAGE = "{page}";
+    // Taken by other feeds
+    private static final Set<String> RESERVED = new HashSet<>(Arrays.asList("trending", "search"));
+    private static final Pattern NAME = Pattern.compile("[a-z0-9][a-z0-9-]*");
+
+    public final String _name;
+    public final String _title;
+    final String _urlTemplate;
+    final int _pages;
+
+    /**
+     * @param name category name, used in the feed's URL
+     * @param title title of the category's feed
+     * @param urlTemplate list URL with {@code {page}} where the page number
+     * goes
+     * @param pages number of list pages to crawl
+     */
+    public CrawlList(String name, String title, String urlTemplate, int pages)
+    {
+        if (!NAME.matcher(name).matches())
+            throw new IllegalArgumentException("Bad list name \"" + name + "\", use lower case letters, digits and -");
+        if (RESERVED.contains(name))
+            throw new IllegalArgumentException("A list can't be called " + name + ", that path is taken");
+        if (!urlTemplate.contains(PAGE))
+            throw new IllegalArgumentException("List URL for " + name + " has no " + PAGE);
+        if (pages < 1)
+            throw new IllegalArgumentException("List " + name + " needs at least one page");
+        _name = name;
+        _title = title;
+        _urlTemplate = urlTemplate;
+        _pages = pages;
+    }
+
+    String getURL(int page)
+    {
+        return _urlTemplate.replace(PAGE, Integer.toString(page));
+    }
+
+    /**
+     * Reads the lists from {@code CRAWL_LISTS}: one list per line (or
+     * separated by {@code ;}), each {@code name,pages,url-template,title}.
+     * The first list is the one served at {@code /books}.
+     * <p>
+     * Without it there is just the Kindle store list, at
+     * {@code CRAWL_BASE_URL} if that is set.
+     *
+     * @throws IllegalArgumentException if a list can't be understood
+     */
+    public static List<CrawlList> load()
+    {
+        String config = Env.getString("CRAWL_LISTS", "").trim();
+        if (config.isEmpty())
+        {
+            return Collections.singletonList(new CrawlList(
+                DEFAULT_NAME, DEFAULT_TITLE, Env.getString("CRAWL_BASE_URL", BASE) + PAGE, PAGES));
+        }
+        return parse(config);
+    }
+
+    static List<CrawlList> parse(String config)
+    {
+        List<CrawlList> lists = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        for (String line : config.split("[;\n]"))
+        {
+            if (line.trim().isEmpty())
+                continue;
+            String[] fields = line.trim().split("\\s*,\\s*", 4);
+            if (fields.length != 4)
+                throw new IllegalArgumentException("Expected name,pages,url-template,title but got \"" + line + "\"");
+
+            int pages;
+            try
+            {
+                pages = Integer.parseInt(fields[1]);
+            }
+            catch (NumberFormatException e)
+            {
+                throw new IllegalArgumentException("Bad page count in \"" + line + "\"", e);
+            }
+            CrawlList list = new CrawlList(fields[0], fields[3], fields[2], pages);
+            if (!names.add(list._name))
+                throw new IllegalArgumentException("List " + list._name + " is defined twice");
+            lists.add(list);
+        }
+        if (lists.isEmpty())
+            throw new IllegalArgumentException("CRAWL_LISTS doesn't define any lists");
+        return lists;
+    }
+
+    @Override
+    public String toString()
+    {
+        return _name;
+    }
+}
@@ -0,0 +1,213 @@
+package com.github.jsbannis.worker;
+
+import java.net.URISyntaxException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.github.jsbannis.Env;
+import com.github.jsbannis.data.Database;
+
+/**
+ * Remembers what we read off product pages between runs so that books that
+ * are still on the list don't need their page fetched again.
+ * <p>
+ * Entries live in the {@code detail_cache} table, keyed by the product's ASIN
+ * when the link has one (list links carry rank-specific tracking parameters)
+ * or the bare link otherwise. Entries older than
+ * {@code DETAIL_CACHE_TTL_HOURS} are refetched, and only the newest
+ * {@code DETAIL_CACHE_SIZE} are kept.
+ */
+public class DetailCache
+{
+    private final static Logger LOG = LoggerFactory.getLogger(DetailCache.class);
+
+    private static final Pattern PRODUCT_LINK = Pattern.compile("/(?:dp|gp/product)/([A-Z0-9]{10})");
+
+    /**
+     * A cache that never has anything in it.
+     */
+    public static final DetailCache DISABLED = new DetailCache(Duration.ZERO, 0)
+    {
+        @Override
+        Optional<DetailedInfo> get(String link)
+        {
+            return Optional.empty();
+        }
+
+        @Override
+        void put(String link, DetailedInfo info)
+        {
+        }
+    };
+
+    private final Map<String, Entry> _entries = new ConcurrentHashMap<>();
+    private final Map<String, Entry> _fetched = new ConcurrentHashMap<>();
+    private final AtomicInteger _hits = new AtomicInteger();
+    private final AtomicInteger _misses = new AtomicInteger();
+    private final Duration _ttl;
+    private final int _size;
+
+    private DetailCache(Duration ttl, int size)
+    {
+        _ttl = ttl;
+        _size = size;
+    }
+
+    /**
+     * Reads the unexpired entries from the database.
+     */
+    public static DetailCache load() throws URISyntaxException, SQLException
+    {
+        DetailCache cache = new DetailCache(
+            Duration.ofHours(Env.getLong("DETAIL_CACHE_TTL_HOURS", 72)),
+            Env.getInt("DETAIL_CACHE_SIZE", 1000));
+        try (Connection connection = Database.getConnection())
+        {
+            createTable(connection);
+            try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT * FROM detail_cache WHERE fetched > ?"))
+            {
+                statement.setTimestamp(1, Timestamp.from(Instant.now().minus(cache._ttl)));
+                try (ResultSet resultSet = statement.executeQuery())
+                {
+                    while (resultSet.next())
+                    {
+                        DetailedInfo info = new DetailedInfo(
+                            resultSet.getString("asin"),
+                            resultSet.getString("detail"),
+                            resultSet.getString("title"));
+                        cache._entries.put(resultSet.getString("key"),
+                            new Entry(resultSet.getString("link"), info));
+                    }
+                }
+            }
+        }
+        LOG.info("Loaded {} cached product pages.", cache._entries.size());
+        return cache;
+    }
+
+    static void createTable(Connection connection) throws SQLException
+    {
+        try (Statement statement = connection.createStatement())
+        {
+            statement.execute("CREATE TABLE IF NOT EXISTS detail_cache "
+                + "("
+                + "key text NOT NULL, "
+                + "link text NOT NULL, "
+                + "asin text NOT NULL, "
+                + "title text, "
+                + "detail text NOT NULL, "
+                + "fetched timestamp without time zone NOT NULL, "
+                + "CONSTRAINT \"primary_detail_cache\" PRIMARY KEY (key)"
+                + ")");
+        }
+    }
+
+    Optional<DetailedInfo> get(String link)
+    {
+        Entry entry = _entries.get(keyOf(link));
+        if (entry == null)
+        {
+            _misses.incrementAndGet();
+            return Optional.empty();
+        }
+        _hits.incrementAndGet();
+        return Optional.of(entry._info);
+    }
+
+    void put(String link, DetailedInfo info)
+    {
+        Entry entry = new Entry(link, info);
+        String key = keyOf(link);
+        _entries.put(key, entry);
+        _fetched.put(key, entry);
+    }
+
+    public int getHits()
+    {
+        return _hits.get();
+    }
+
+    public int getMisses()
+    {
+        return _misses.get();
+    }
+
+    /**
+     * Writes the pages fetched during this run and evicts expired and excess
+     * entries.
+     */
+    public void save() throws URISyntaxException, SQLException
+    {
+        LOG.info("Product page cache: {} hits, {} misses.", getHits(), getMisses());
+        try (Connection connection = Database.getConnection())
+        {
+            if (!_fetched.isEmpty())
+            {
+                try (PreparedStatement statement = connection.prepareStatement(
+                    "INSERT INTO detail_cache VALUES (?, ?, ?, ?, ?, now()) "
+                        + "ON CONFLICT (key) DO UPDATE SET "
+                        + "link = excluded.link, asin = excluded.asin, title = excluded.title, "
+                        + "detail = excluded.detail, fetched = excluded.fetched"))
+                {
+                    for (Map.Entry<String, Entry> fetched : _fetched.entrySet())
+                    {
+                        DetailedInfo info = fetched.getValue()._info;
+                        statement.setString(1, fetched.getKey());
+                        statement.setString(2, fetched.getValue()._link);
+                        statement.setString(3, info._asin);
+                        statement.setString(4, info._title.orElse(null));
+                        statement.setString(5, info._detailedInfo);
+                        statement.addBatch();
+                    }
+                    statement.executeBatch();
+                }
+            }
+
+            try (PreparedStatement statement = connection.prepareStatement(
+                "DELETE FROM detail_cache WHERE fetched <= ? OR key IN "
+                    + "(SELECT key FROM detail_cache ORDER BY fetched DESC OFFSET ?)"))
+            {
+                statement.setTimestamp(1, Timestamp.from(Instant.now().minus(_ttl)));
+                statement.setInt(2, _size);
+                int evicted = statement.executeUpdate();
+                LOG.info("Saved {} product pages, evicted {}.", _fetched.size(), evicted);
+            }
+        }
+    }
+
+    static String keyOf(String link)
+    {
+        Matcher matcher = PRODUCT_LINK.matcher(link);
+        if (matcher.find())
+            return matcher.group(1);
+        int query = link.indexOf('?');
+        return query < 0 ? link : link.substring(0, query);
+    }
+
+    private static class Entry
+    {
+        final String _link;
+        final DetailedInfo _info;
+
+        Entry(String link, DetailedInfo info)
+        {
+            _link = link;
+            _info = info;
+        }
+    }
+}
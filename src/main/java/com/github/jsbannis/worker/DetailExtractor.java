@@ -0,0 +1,320 @@
+package com.github.jsbannis.worker;
+
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.Arrays;
+import java.util.Optional;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+
+/**
+ * Cuts the parts of a product page that {@link Parser} reads - the title,
+ * the description and the detail bullets - out of the raw page, so that only
+ * they need to be parsed instead of the whole few hundred KB.
+ * <p>
+ * The page is scanned as bytes, looking at tags only and skipping comments,
+ * scripts and styles, and the scan stops as soon as all three parts have
+ * been seen.
+ */
+class DetailExtractor
+{
+    static final String DESCRIPTION_ID = "bookDescription_feature_div";
+    static final String DETAILS_ID = "detail-bullets";
+
+    private static final String ASCII_PROBE = "<div id=\"-_\"></div>";
+
+    private final byte[] _body;
+    private final int[] _starts = { -1, -1, -1 };
+    private final int[] _ends = { -1, -1, -1 };
+    private final int[] _depths = new int[3];
+
+    private static final int TITLE = 0;
+    private static final int DESCRIPTION = 1;
+    private static final int DETAILS = 2;
+
+    private DetailExtractor(byte[] body)
+    {
+        _body = body;
+    }
+
+    /**
+     * @return a document holding only the title, description and detail
+     * bullets of the page, or empty if any of them wasn't found or the page
+     * can't be scanned, in which case the whole page has to be parsed.
+     */
+    static Optional<Document> extract(Page page)
+    {
+        Optional<Charset> charset = asciiCompatible(page._charset);
+        if (!charset.isPresent())
+            return Optional.empty();
+
+        DetailExtractor extractor = new DetailExtractor(page._body);
+        if (!extractor.scan())
+            return Optional.empty();
+
+        StringBuilder parts = new StringBuilder();
+        for (int part = TITLE; part <= DETAILS; part++)
+            parts.append(new String(page._body, extractor._starts[part],
+                extractor._ends[part] - extractor._starts[part], charset.get()));
+        return Optional.of(Jsoup.parse(parts.toString(), page._url));
+    }
+
+    /**
+     * The scan compares bytes against ASCII markup, which only works if the
+     * page's charset encodes that the same way. Without a charset we'd have
+     * to sniff it like Jsoup does, so leave that to Jsoup.
+     */
+    private static Optional<Charset> asciiCompatible(String name)
+    {
+        if (name == null)
+            return Optional.empty();
+        try
+        {
+            Charset charset = Charset.forName(name);
+            if (Arrays.equals(ASCII_PROBE.getBytes(charset), ASCII_PROBE.getBytes(StandardCharsets.US_ASCII)))
+                return Optional.of(charset);
+        }
+        catch (IllegalCharsetNameException | UnsupportedCharsetException e)
+        {
+            // Jsoup will complain about it properly
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * @return whether all parts were found.
+     */
+    private boolean scan()
+    {
+        int i = 0;
+        while (!found())
+        {
+            int tag = indexOf('<', i);
+            if (tag < 0 || tag + 1 >= _body.length)
+                return false;
+
+            if (startsWith(tag, "<!--"))
+            {
+                int end = indexOf("-->", tag + 4);
+                if (end < 0)
+                    return false;
+                i = end + 3;
+            }
+            else if (_body[tag + 1] == '/')
+            {
+                i = tagEnd(tag);
+                if (isName(tag + 2, "div"))
+                    closeDiv(i);
+            }
+            else if (isName(tag + 1, "script") || isName(tag + 1, "style"))
+            {
+                // Their content is text, whatever it looks like
+                String close = isName(tag + 1, "script") ? "</script" : "</style";
+                int end = indexOf(close, tag);
+                if (end < 0)
+                    return false;
+                i = tagEnd(end);
+            }
+            else if (isName(tag + 1, "title"))
+            {
+                int end = indexOf("</title", tag);
+                if (end < 0)
+                    return false;
+                i = tagEnd(end);
+                if (_starts[TITLE] < 0)
+                {
+                    _starts[TITLE] = tag;
+                    _ends[TITLE] = i;
+                }
+            }
+            else if (isName(tag + 1, "div"))
+            {
+                i = tagEnd(tag);
+                openDiv(tag, i);
+            }
+            else
+            {
+                i = tagEnd(tag);
+            }
+        }
+        return true;
+    }
+
+    private boolean found()
+    {
+        return _ends[TITLE] >= 0 && _ends[DESCRIPTION] >= 0 && _ends[DETAILS] >= 0;
+    }
+
+    private void openDiv(int start, int end)
+    {
+        for (int part = DESCRIPTION; part <= DETAILS; part++)
+        {
+            if (_starts[part] >= 0 && _ends[part] < 0)
+                _depths[part]++;
+        }
+
+        String id = attribute(start, end, "id");
+        int part = DESCRIPTION_ID.equals(id) ? DESCRIPTION : DETAILS_ID.equals(id) ? DETAILS : -1;
+        if (part >= 0 && _starts[part] < 0)
+        {
+            _starts[part] = start;
+            _depths[part] = 1;
+        }
+    }
+
+    private void closeDiv(int end)
+    {
+        for (int part = DESCRIPTION; part <= DETAILS; part++)
+        {
+            if (_starts[part] >= 0 && _ends[part] < 0 && --_depths[part] == 0)
+                _ends[part] = end;
+        }
+    }
+
+    /**
+     * @return the position just after the {@code >} closing the tag that
+     * starts at {@code start}, skipping over quoted attribute values.
+     */
+    private int tagEnd(int start)
+    {
+        boolean afterEquals = false;
+        for (int i = start + 1; i < _body.length; i++)
+        {
+            byte b = _body[i];
+            if (b == '>')
+                return i + 1;
+            if ((b == '"' || b == '\'') && afterEquals)
+            {
+                int close = indexOf(b, i + 1);
+                if (close < 0)
+                    return _body.length;
+                i = close;
+                afterEquals = false;
+            }
+            else if (b == '=')
+            {
+                afterEquals = true;
+            }
+            else if (!isSpace(b))
+            {
+                afterEquals = false;
+            }
+        }
+        return _body.length;
+    }
+
+    /**
+     * @return the value of the attribute in the start tag between
+     * {@code start} and {@code end}, or null if it isn't there.
+     */
+    private String attribute(int start, int end, String name)
+    {
+        int i = start + 1;
+        while (i < end && !isSpace(_body[i]) && _body[i] != '>' && _body[i] != '/')
+            i++;
+
+        while (i < end)
+        {
+            while (i < end && (isSpace(_body[i]) || _body[i] == '/'))
+                i++;
+            int nameStart = i;
+            while (i < end && !isSpace(_body[i]) && _body[i] != '=' && _body[i] != '>' && _body[i] != '/')
+                i++;
+            int nameEnd = i;
+            if (nameStart == nameEnd)
+                return null;
+
+            while (i < end && isSpace(_body[i]))
+                i++;
+            int valueStart = i;
+            int valueEnd = i;
+            if (i < end && _body[i] == '=')
+            {
+                i++;
+                while (i < end && isSpace(_body[i]))
+                    i++;
+                if (i < end && (_body[i] == '"' || _body[i] == '\''))
+                {
+                    byte quote = _body[i];
+                    valueStart = ++i;
+                    while (i < end && _body[i] != quote)
+                        i++;
+                    valueEnd = i++;
+                }
+                else
+                {
+                    valueStart = i;
+                    while (i < end && !isSpace(_body[i]) && _body[i] != '>')
+                        i++;
+                    valueEnd = i;
+                }
+            }
+
+            if (nameEnd - nameStart == name.length() && regionMatches(nameStart, name))
+                return new String(_body, valueStart, valueEnd - valueStart, StandardCharsets.ISO_8859_1);
+        }
+        return null;
+    }
+
+    /**
+     * @return whether a tag name, compared without case, starts at
+     * {@code start} and is exactly {@code name}.
+     */
+    private boolean isName(int start, String name)
+    {
+        int end = start + name.length();
+        if (end >= _body.length || !regionMatches(start, name))
+            return false;
+        byte next = _body[end];
+        return isSpace(next) || next == '>' || next == '/';
+    }
+
+    private boolean startsWith(int start, String prefix)
+    {
+        return start + prefix.length() <= _body.length && regionMatches(start, prefix);
+    }
+
+    /**
+     * Compares without case, {@code text} must be lower case ASCII.
+     */
+    private boolean regionMatches(int start, String text)
+    {
+        for (int i = 0; i < text.length(); i++)
+        {
+            int b = _body[start + i];
+            if (b >= 'A' && b <= 'Z')
+                b += 'a' - 'A';
+            if (b != text.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    private int indexOf(int b, int from)
+    {
+        for (int i = from; i < _body.length; i++)
+        {
+            if (_body[i] == b)
+                return i;
+        }
+        return -1;
+    }
+
+    private int indexOf(String text, int from)
+    {
+        for (int i = indexOf(text.charAt(0), from); i >= 0; i = indexOf(text.charAt(0), i + 1))
+        {
+            if (startsWith(i, text))
+                return i;
+        }
+        return -1;
+    }
+
+    private static boolean isSpace(byte b)
+    {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '\f';
+    }
+}
@@ -0,0 +1,28 @@
+package com.github.jsbannis.worker;
+
+import java.util.Optional;
+
+/**
+ * What we take from a book's product page.
+ */
+class DetailedInfo
+{
+    final String _asin;
+    final String _detailedInfo;
+    final Optional<String> _title;
+
+    DetailedInfo(String asin, String description)
+    {
+        this(asin, description, null);
+    }
+
+    DetailedInfo(String asin, String description, String longTitle)
+    {
+        assert asin != null;
+        assert description != null;
+
+        _asin = asin;
+        _detailedInfo = description;
+        _title = Optional.ofNullable(longTitle);
+    }
+}
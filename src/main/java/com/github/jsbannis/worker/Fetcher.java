@@ -0,0 +1,219 @@
+package com.github.jsbannis.worker;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.jsoup.Connection;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.github.jsbannis.Env;
+import com.github.jsbannis.metrics.Metrics;
+
+/**
+ * Downloads pages for the crawler. Safe to share between threads.
+ * <p>
+ * Every request waits for its host's rate limit and for one of a fixed
+ * number of connections, so raising the crawl parallelism never means more
+ * load on Amazon than configured.
+ * <p>
+ * Failed requests, and responses that are really Amazon telling us to slow
+ * down, are retried after an exponentially growing, randomised delay. Hosts
+ * that keep failing are cut off for a while by a {@link CircuitBreaker}, and
+ * nothing is fetched once the crawl has run past its deadline.
+ */
+public class Fetcher
+{
+    private final static Logger LOG = LoggerFactory.getLogger(Fetcher.class);
+
+    public static final int TIMEOUT = 5000;
+    private static final int ATTEMPTS = 5;
+
+    private static final long BACKOFF_BASE = 500;
+    private static final long THROTTLED_BACKOFF_BASE = 2000;
+    private static final long BACKOFF_CAP = 30000;
+
+    private final HostRateLimiter _rateLimiter;
+    private final Semaphore _connections;
+    private final CircuitBreaker _breaker = new CircuitBreaker(
+        Env.getInt("CRAWL_BREAKER_THRESHOLD", 5),
+        Env.getLong("CRAWL_BREAKER_COOL_DOWN_SECONDS", 60), TimeUnit.SECONDS);
+    private final long _crawlTimeout = TimeUnit.SECONDS.toNanos(
+        Env.getLong("CRAWL_DEADLINE_SECONDS", 300));
+    private volatile long _deadline = Long.MAX_VALUE;
+
+    /**
+     * Creates a fetcher configured from {@code CRAWL_REQUESTS_PER_SECOND}
+     * (per host) and {@code CRAWL_MAX_CONNECTIONS}.
+     */
+    public Fetcher()
+    {
+        this(Env.getInt("CRAWL_REQUESTS_PER_SECOND", 4), Env.getInt("CRAWL_MAX_CONNECTIONS", 4));
+    }
+
+    public Fetcher(double requestsPerSecond, int maxConnections)
+    {
+        _rateLimiter = new HostRateLimiter(requestsPerSecond);
+        _connections = new Semaphore(maxConnections, true);
+    }
+
+    /**
+     * Starts the clock on a crawl, which gets {@code CRAWL_DEADLINE_SECONDS}
+     * to finish.
+     */
+    public void beginCrawl()
+    {
+        _deadline = System.nanoTime() + _crawlTimeout;
+    }
+
+    public Optional<Document> getDocument(String url)
+    {
+        Optional<Page> page = fetch(url);
+        if (!page.isPresent())
+            return Optional.empty();
+        try
+        {
+            return Optional.of(page.get().parse());
+        }
+        catch (IOException e)
+        {
+            LOG.warn("Could not parse page \"{}\"", url, e);
+            return Optional.empty();
+        }
+    }
+
+    public Optional<Page> fetch(String url)
+    {
+        String host = HostRateLimiter.hostOf(url);
+        try
+        {
+            for (int attempt = 1; attempt <= ATTEMPTS; attempt++)
+            {
+                if (System.nanoTime() > _deadline)
+                {
+                    Metrics.counter("crawl_deadline_skips_total", "Page requests skipped because the crawl ran out of time")
+                        .increment();
+                    LOG.warn("Crawl deadline passed, skipping \"{}\"", url);
+                    return Optional.empty();
+                }
+                if (!_breaker.allow(host))
+                {
+                    Metrics.counter("crawl_breaker_rejections_total", "Page requests refused by an open circuit", "host", host)
+                        .increment();
+                    LOG.info("Circuit for {} is open, skipping \"{}\"", host, url);
+                    return Optional.empty();
+                }
+
+                long backoffBase = BACKOFF_BASE;
+                boolean succeeded = false;
+                try
+                {
+                    Page page = request(url, host);
+                    if (!isThrottled(page) && page._status < 500)
+                    {
+                        succeeded = true;
+                        _breaker.success(host);
+                        return Optional.of(page);
+                    }
+                    if (isThrottled(page))
+                    {
+                        backoffBase = THROTTLED_BACKOFF_BASE;
+                        Metrics.counter("crawl_fetch_throttled_total", "Responses asking us to slow down", "host", host)
+                            .increment();
+                    }
+                    LOG.info("Get page request for \"{}\" was refused with status {}. Attempt {} of {}.",
+                        url, page._status, attempt, ATTEMPTS);
+                }
+                catch (IOException e)
+                {
+                    LOG.info("Get page request for \"{}\" failed: {}. Attempt {} of {}.",
+                        url, e.toString(), attempt, ATTEMPTS);
+                }
+                finally
+                {
+                    // Also when interrupted or something unexpected was
+                    // thrown, or a trial request would leave the circuit
+                    // refusing the host for good
+                    if (!succeeded)
+                        _breaker.failure(host);
+                }
+
+                if (attempt < ATTEMPTS)
+                {
+                    Metrics.counter("crawl_fetch_retries_total", "Page requests that were retried", "host", host)
+                        .increment();
+                    backOff(backoffBase, attempt);
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            LOG.warn("Interrupted while fetching \"{}\"", url);
+            return Optional.empty();
+        }
+
+        Metrics.counter("crawl_fetch_failures_total", "Page requests that were given up on", "host", host)
+            .increment();
+        LOG.warn("Get page request for \"{}\" failed on final attempt. Giving up.", url);
+        return Optional.empty();
+    }
+
+    private Page request(String url, String host) throws IOException, InterruptedException
+    {
+        _connections.acquire();
+        try
+        {
+            _rateLimiter.acquire(url);
+            long start = System.nanoTime();
+            Connection.Response response = Jsoup.connect(url)
+                .userAgent("Mozilla/5.0 Chrome/26.0.1410.64 Safari/537.31")
+                .timeout(TIMEOUT)
+                .ignoreHttpErrors(true)
+                .execute();
+            byte[] body = response.bodyAsBytes();
+            Metrics.timer("crawl_fetch_seconds", "Time to fetch a page", "host", host)
+                .observeSince(start);
+            Metrics.sizes("crawl_fetch_bytes", "Size of fetched pages", "host", host)
+                .observe(body.length);
+            return new Page(url, response.statusCode(), response.charset(), body);
+        }
+        finally
+        {
+            _connections.release();
+        }
+    }
+
+    /**
+     * Sleeps for a random time of up to {@code base * 2^(attempt-1)}, capped,
+     * and never past the crawl deadline. Randomising the whole delay keeps our
+     * threads from retrying in lock step.
+     */
+    private void backOff(long base, int attempt) throws InterruptedException
+    {
+        long ceiling = Math.min(BACKOFF_CAP, base << (attempt - 1));
+        long delay = ThreadLocalRandom.current().nextLong(ceiling + 1);
+        long remaining = TimeUnit.NANOSECONDS.toMillis(_deadline - System.nanoTime());
+        Thread.sleep(Math.max(0, Math.min(delay, remaining)));
+    }
+
+    /**
+     * Amazon answers too many requests with a 503 or 429, or with a normal
+     * looking page that asks for a captcha.
+     */
+    static boolean isThrottled(Page page)
+    {
+        if (page._status == 429 || page._status == 503)
+            return true;
+        if (page._status != 200)
+            return false;
+        // The captcha page is small, so only look at the start of the body
+        String start = new String(page._body, 0, Math.min(page._body.length, 8192), StandardCharsets.ISO_8859_1);
+        return start.contains("/errors/validateCaptcha") || start.contains("<title dir=\"ltr\">Robot Check</title>");
+    }
+}
@@ -0,0 +1,237 @@
+package com.github.jsbannis.worker;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The books that have been removed from each category, which must not come
+ * back, kept in memory so that they can be left out before reaching the
+ * database.
+ * <p>
+ * An ASIN is ten letters and digits, so it is packed into a long and each
+ * category is a sorted array of them, sixteen bytes a book with the time of
+ * removal. Anything that doesn't look like an ASIN isn't tracked here, and
+ * the database still has the last word, so a book missing from this only
+ * costs a little work.
+ */
+class History
+{
+    private final Map<String, Entries> _categories = new HashMap<>();
+    private final long _loaded = System.nanoTime();
+    private int _size;
+
+    private History()
+    {
+    }
+
+    /**
+     * Reads the whole history table.
+     */
+    static History load(Connection connection) throws SQLException
+    {
+        Map<String, Entries> loading = new HashMap<>();
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT category, asin, \"time\" FROM history"))
+        {
+            while (resultSet.next())
+            {
+                long key = pack(resultSet.getString("asin"));
+                if (key < 0)
+                    continue;
+                loading.computeIfAbsent(resultSet.getString("category"), category -> new Entries())
+                    .append(key, resultSet.getTimestamp("time").getTime());
+            }
+        }
+
+        History history = new History();
+        loading.forEach((category, entries) -> {
+            entries.sort();
+            history._categories.put(category, entries);
+            history._size += entries._size;
+        });
+        return history;
+    }
+
+    /**
+     * @return nanoTime when this was read from the database.
+     */
+    long getLoaded()
+    {
+        return _loaded;
+    }
+
+    int size()
+    {
+        return _size;
+    }
+
+    boolean contains(String category, String asin)
+    {
+        Entries entries = _categories.get(category);
+        long key = pack(asin);
+        return entries != null && key >= 0 && entries.indexOf(key, entries._size) >= 0;
+    }
+
+    void add(String category, Collection<String> asins, Instant removed)
+    {
+        long[] keys = new long[asins.size()];
+        int count = 0;
+        for (String asin : asins)
+        {
+            long key = pack(asin);
+            if (key >= 0)
+                keys[count++] = key;
+        }
+        if (count == 0)
+            return;
+        Arrays.sort(keys, 0, count);
+        _size += _categories.computeIfAbsent(category, c -> new Entries())
+            .insert(keys, count, removed.toEpochMilli());
+    }
+
+    /**
+     * Forgets books removed before the cutoff.
+     */
+    void prune(Instant cutoff)
+    {
+        long millis = cutoff.toEpochMilli();
+        for (Entries entries : _categories.values())
+        {
+            int before = entries._size;
+            entries.removeBefore(millis);
+            _size -= before - entries._size;
+        }
+    }
+
+    /**
+     * @return the ASIN as a base 36 number, or -1 if it isn't made of ten
+     * digits and upper case letters.
+     */
+    static long pack(String asin)
+    {
+        if (asin == null || asin.length() != 10)
+            return -1;
+        long key = 0;
+        for (int i = 0; i < 10; i++)
+        {
+            char c = asin.charAt(i);
+            if (c >= '0' && c <= '9')
+                key = key * 36 + (c - '0');
+            else if (c >= 'A' && c <= 'Z')
+                key = key * 36 + (c - 'A' + 10);
+            else
+                return -1;
+        }
+        return key;
+    }
+
+    /**
+     * Keys with their times, sorted by key once {@link #sort()} is called
+     * and kept sorted by {@link #insert}.
+     */
+    private static class Entries
+    {
+        long[] _keys = new long[16];
+        long[] _times = new long[16];
+        int _size;
+
+        void append(long key, long time)
+        {
+            if (_size == _keys.length)
+            {
+                _keys = Arrays.copyOf(_keys, _size * 2);
+                _times = Arrays.copyOf(_times, _size * 2);
+            }
+            _keys[_size] = key;
+            _times[_size] = time;
+            _size++;
+        }
+
+        /**
+         * @param sorted how many keys from the start are sorted
+         */
+        int indexOf(long key, int sorted)
+        {
+            return Arrays.binarySearch(_keys, 0, sorted, key);
+        }
+
+        void sort()
+        {
+            Integer[] order = new Integer[_size];
+            for (int i = 0; i < _size; i++)
+                order[i] = i;
+            Arrays.sort(order, (a, b) -> Long.compare(_keys[a], _keys[b]));
+
+            long[] keys = new long[_keys.length];
+            long[] times = new long[_times.length];
+            for (int i = 0; i < _size; i++)
+            {
+                keys[i] = _keys[order[i]];
+                times[i] = _times[order[i]];
+            }
+            _keys = keys;
+            _times = times;
+        }
+
+        /**
+         * Merges sorted keys into the sorted entries, leaving out the ones
+         * already there.
+         *
+         * @return how many were added
+         */
+        int insert(long[] keys, int count, long time)
+        {
+            long[] merged = new long[Math.max(16, _size + count)];
+            long[] times = new long[merged.length];
+            int i = 0;
+            int n = 0;
+            for (int j = 0; j < count; j++)
+            {
+                long key = keys[j];
+                if (j > 0 && key == keys[j - 1])
+                    continue;
+                for (; i < _size && _keys[i] < key; i++, n++)
+                {
+                    merged[n] = _keys[i];
+                    times[n] = _times[i];
+                }
+                if (i < _size && _keys[i] == key)
+                    continue;
+                merged[n] = key;
+                times[n] = time;
+                n++;
+            }
+            System.arraycopy(_keys, i, merged, n, _size - i);
+            System.arraycopy(_times, i, times, n, _size - i);
+            n += _size - i;
+
+            int added = n - _size;
+            _keys = merged;
+            _times = times;
+            _size = n;
+            return added;
+        }
+
+        void removeBefore(long cutoff)
+        {
+            int kept = 0;
+            for (int i = 0; i < _size; i++)
+            {
+                if (_times[i] >= cutoff)
+                {
+                    _keys[kept] = _keys[i];
+                    _times[kept] = _times[i];
+                    kept++;
+                }
+            }
+            _size = kept;
+        }
+    }
+}
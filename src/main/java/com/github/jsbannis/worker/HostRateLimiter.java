@@ -0,0 +1,68 @@
+package com.github.jsbannis.worker;
+
+import java.net.URI;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spaces out the requests made to each host so that, however many threads
+ * are crawling, a host never sees more than the configured request rate.
+ */
+public class HostRateLimiter
+{
+    private final long _intervalNanos;
+    private final ConcurrentMap<String, Slot> _hosts = new ConcurrentHashMap<>();
+
+    /**
+     * @param requestsPerSecond the maximum rate per host, or zero for no
+     * limit.
+     */
+    public HostRateLimiter(double requestsPerSecond)
+    {
+        _intervalNanos = requestsPerSecond <= 0
+            ? 0
+            : (long) (TimeUnit.SECONDS.toNanos(1) / requestsPerSecond);
+    }
+
+    /**
+     * Blocks until the host of the given URL may be sent another request.
+     */
+    public void acquire(String url) throws InterruptedException
+    {
+        if (_intervalNanos == 0)
+            return;
+        long wait = _hosts.computeIfAbsent(hostOf(url), host -> new Slot()).reserve(_intervalNanos);
+        if (wait > 0)
+            TimeUnit.NANOSECONDS.sleep(wait);
+    }
+
+    static String hostOf(String url)
+    {
+        try
+        {
+            String host = URI.create(url.trim()).getHost();
+            return host == null ? "" : host.toLowerCase();
+        }
+        catch (IllegalArgumentException e)
+        {
+            return "";
+        }
+    }
+
+    private static class Slot
+    {
+        private long _next = System.nanoTime();
+
+        /**
+         * @return how long the caller has to wait for the slot it was given.
+         */
+        synchronized long reserve(long interval)
+        {
+            long now = System.nanoTime();
+            long slot = Math.max(now, _next);
+            _next = slot + interval;
+            return slot - now;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.github.jsbannis.worker;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.github.jsbannis.data.Book;
+import com.github.jsbannis.metrics.Metrics;
+import com.heroku.sdk.jdbc.DatabaseUrl;
+
+/**
+ * Runs the {@link IndexWorker} every so often from inside the web process.
+ * <p>
+ * Runs happen one at a time on a thread of their own, never on the server's.
+ * When several web processes are running only the leader crawls: the one
+ * holding a Postgres advisory lock. The lock is held on a connection of its
+ * own, so if the leader goes away another process takes over on its next
+ * turn.
+ */
+public class IndexScheduler
+{
+    private final static Logger LOG = LoggerFactory.getLogger(IndexScheduler.class);
+
+    /**
+     * Advisory lock key, "eBookFee" in ASCII.
+     */
+    static final long LOCK_KEY = 0x65426f6f6b466565L;
+
+    private static final long FIRST_RUN_DELAY = TimeUnit.MINUTES.toMillis(1);
+
+    private final IndexWorker _worker = new IndexWorker();
+    private final long _interval;
+    private final boolean _incremental;
+    private final Consumer<Map<String, List<Book>>> _onIndexed;
+    private final ScheduledExecutorService _executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "index-scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Only touched from the executor's thread
+    private Connection _leadership;
+
+    /**
+     * @param interval time between the end of one run and the start of the
+     * next
+     * @param incremental whether runs use the {@link DetailCache}
+     * @param onIndexed given the whole of each category updated by a run
+     */
+    public IndexScheduler(long interval, TimeUnit unit, boolean incremental, Consumer<Map<String, List<Book>>> onIndexed)
+    {
+        _interval = unit.toMillis(interval);
+        _incremental = incremental;
+        _onIndexed = onIndexed;
+    }
+
+    public void start()
+    {
+        LOG.info("Indexing every {} minutes", TimeUnit.MILLISECONDS.toMinutes(_interval));
+        _executor.scheduleWithFixedDelay(this::run, FIRST_RUN_DELAY, _interval, TimeUnit.MILLISECONDS);
+    }
+
+    private void run()
+    {
+        // Anything thrown out of here would cancel all later runs
+        try
+        {
+            if (!isLeader())
+            {
+                LOG.info("Another process is indexing, skipping this run.");
+                count("skipped");
+                return;
+            }
+
+            Optional<Map<String, List<Book>>> books = _worker.doWork(_incremental);
+            books.ifPresent(_onIndexed);
+            count("indexed");
+        }
+        catch (Exception e)
+        {
+            LOG.warn("Scheduled index run failed", e);
+            count("failed");
+        }
+    }
+
+    /**
+     * @return whether we hold the index lock, trying to take it if we don't.
+     */
+    private boolean isLeader() throws Exception
+    {
+        if (_leadership != null)
+        {
+            if (_leadership.isValid(5))
+                return true;
+            LOG.warn("Lost the connection holding the index lock");
+            close(_leadership);
+            _leadership = null;
+        }
+
+        Connection connection = DatabaseUrl.extract().getConnection();
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT pg_try_advisory_lock(" + LOCK_KEY + ")"))
+        {
+            if (resultSet.next() && resultSet.getBoolean(1))
+            {
+                LOG.info("Took the index lock, this process will do the indexing.");
+                _leadership = connection;
+                return true;
+            }
+        }
+        catch (SQLException e)
+        {
+            close(connection);
+            throw e;
+        }
+        close(connection);
+        return false;
+    }
+
+    private static void close(Connection connection)
+    {
+        try
+        {
+            connection.close();
+        }
+        catch (SQLException e)
+        {
+            LOG.debug("Failed to close connection", e);
+        }
+    }
+
+    private static void count(String result)
+    {
+        Metrics.counter("index_scheduled_runs_total", "Index runs started by the scheduler", "result", result)
+            .increment();
+    }
+}
@@ -1,20 +1,43 @@
 package com.github.jsbannis.worker;
 
+import java.io.IOException;
+import java.io.StringReader;
 import java.net.URISyntaxException;
+import java.sql.Array;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.concurrent.TimeUnit;
 
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import com.github.jsbannis.Env;
 import com.github.jsbannis.data.Book;
+import com.github.jsbannis.data.BookChangeListener;
+import com.github.jsbannis.data.BookFields;
+import com.github.jsbannis.data.BookLoader;
+import com.github.jsbannis.data.BookQuery;
+import com.github.jsbannis.data.Database;
+import com.github.jsbannis.metrics.Histogram;
+import com.github.jsbannis.metrics.Metrics;
+import com.github.jsbannis.metrics.MetricsStore;
+import com.github.jsbannis.worker.Parser.ListReport;
 import com.heroku.sdk.jdbc.DatabaseUrl;
 
 /**
@@ -24,170 +47,618 @@ public class IndexWorker
 {
     private final static Logger LOG = LoggerFactory.getLogger(IndexWorker.class);
 
-    public void doWork() throws URISyntaxException, SQLException
+    /**
+     * Advisory lock key held while updating the index, "eBookIdx" in ASCII.
+     */
+    static final long LOCK_KEY = 0x65426f6f6b496478L;
+
+    private static final long HISTORY_RELOAD = TimeUnit.HOURS.toNanos(24);
+
+    private final Fetcher _fetcher;
+    private final int _historyRetentionDays = Env.getInt("HISTORY_RETENTION_DAYS", 0);
+    private final double _trendDecay = Env.getInt("TRENDING_DECAY_PERCENT", 70) / 100.0;
+    private final int _stageBatch = Env.getInt("INDEX_STAGE_BATCH", 200);
+    private final int _maxMissingPercent = Env.getInt("INDEX_MAX_MISSING_PERCENT", 5);
+
+    // Kept between runs of the same worker, and read again now and then in
+    // case another process changed it
+    private History _history;
+
+    public IndexWorker()
     {
-        LOG.info("Crawling pages...");
-        List<Book> books = new Parser().parse();
-        LOG.info("Crawling complete.");
+        this(new Fetcher());
+    }
 
-        LOG.info("Connecting to database...");
-        Connection connection;
-        connection = DatabaseUrl.extract().getConnection();
-        LOG.info("Connected {}", connection);
-        Statement lock = connection.createStatement();
+    /**
+     * @param fetcher where pages come from, for instance a
+     * {@link ReplayFetcher} to index a recorded crawl
+     */
+    public IndexWorker(Fetcher fetcher)
+    {
+        _fetcher = fetcher;
+    }
 
-        try
+    public Optional<Map<String, List<Book>>> doWork() throws URISyntaxException, SQLException
+    {
+        return doWork(false);
+    }
+
+    /**
+     * Crawls the lists straight into the database, a batch at a time, and
+     * then brings the index in line with what was found. Books are only
+     * removed from lists that were crawled completely, see
+     * {@link Parser.ListReport#isComplete(int)}.
+     * <p>
+     * The crawl is staged into a temporary table outside of any transaction,
+     * so it holds no locks and pins no snapshot however long it takes. Only
+     * the merge at the end runs in a transaction, which is rolled back if
+     * anything goes wrong.
+     *
+     * @param incremental only fetch product pages that aren't in the
+     * {@link DetailCache}
+     * @return by category, everything in the index after the run, in the
+     * order {@link BookLoader} reads it, for the categories that were
+     * updated; empty if the index was left alone
+     */
+    public Optional<Map<String, List<Book>>> doWork(boolean incremental) throws URISyntaxException, SQLException
+    {
+        DetailCache cache = incremental ? DetailCache.load() : DetailCache.DISABLED;
+
+        // A connection of its own rather than one from the pool, since it
+        // is kept for the whole crawl, and the staged table lives and dies
+        // with it
+        LOG.info("Connecting to database...");
+        try (Connection connection = DatabaseUrl.extract().getConnection())
         {
-            // Lock tables
+            LOG.info("Connected {}", connection);
+            inTransaction(connection, statement -> {
+                createTables(statement);
+                if (_history == null || System.nanoTime() - _history.getLoaded() > HISTORY_RELOAD)
+                {
+                    long start = System.nanoTime();
+                    _history = History.load(connection);
+                    phase("history").observeSince(start);
+                    LOG.info("Loaded {} history entries.", _history.size());
+                }
+                pruneHistory(connection);
+                return null;
+            });
+
+            LOG.info("Crawling pages...");
+            long start = System.nanoTime();
+            Staging staging = new Staging(connection, _history, _stageBatch);
+            Map<String, ListReport> crawled = new Parser(_fetcher, cache).crawl(staging::add);
+            staging.flush();
+            phase("crawl").observeSince(start);
+            phase("stage").observeNanos(staging._nanos);
+            LOG.info("Crawling complete. Found {} books in {} ms, staged {}, skipped {} found in the history.",
+                crawled.values().stream().mapToInt(ListReport::getFound).sum(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), staging._count, staging._skipped);
+            Metrics.counter("index_history_skips_total", "Crawled books left out because they were removed before")
+                .add(staging._skipped);
+
+            if (incremental)
+                cache.save();
+
+            // Amazon refused us or the page layout changed; an empty list
+            // would wipe the category, and one with pages missing would
+            // lose the books on them
+            Set<String> complete = new HashSet<>();
+            crawled.values().removeIf(report -> {
+                LOG.info("Crawled {}", report);
+                if (report.getFound() == 0)
+                {
+                    LOG.warn("Crawl found no books for {}, leaving it as it is.", report._list);
+                    return true;
+                }
+                if (report.isComplete(_maxMissingPercent))
+                    complete.add(report._list._name);
+                else
+                    LOG.warn("Crawl of {} is incomplete, not removing anything from it.", report._list);
+                return false;
+            });
+            if (crawled.isEmpty())
+                return Optional.empty();
+
             LOG.info("Starting database transaction...");
-            lock.execute("BEGIN WORK");
-            lock.execute("CREATE TABLE IF NOT EXISTS books "
-                + "("
-                + "asin text NOT NULL, "
-                + "\"time\" timestamp without time zone NOT NULL, "
-                + "title text, "
-                + "byline text, "
-                + "link text, "
-                + "review text, "
-                + "price text, "
-                + "image text, "
-                + "detail text, "
-                + "CONSTRAINT \"primary\" PRIMARY KEY (asin)"
-                + ")");
-            lock.execute("CREATE TABLE IF NOT EXISTS history "
-                + "("
-                + "asin text NOT NULL, "
-                + "\"time\" timestamp without time zone NOT NULL, "
-                + "CONSTRAINT \"primary_history\" PRIMARY KEY (asin)"
-                + ")");
-            lock.execute("LOCK TABLE books");
-            lock.execute("LOCK TABLE history");
-
-            // Find books in database that are no longer on the list
-            // TODO we can probably move some of the database stuff to Book class
-            Set<String> asins = books.stream()
-                .map(book -> book._asin)
-                .collect(Collectors.toSet());
-            LOG.info("Found {} books from crawling.", asins.size());
-
-            Set<String> removeFromDb = new HashSet<>();
-            Statement statement = connection.createStatement();
-            ResultSet resultSet = statement.executeQuery("SELECT asin FROM books");
-            while (resultSet.next())
+            Map<String, List<Book>> index = inTransaction(connection, statement -> {
+                long publish = System.nanoTime();
+                Map<String, List<Book>> merged = merge(connection, crawled, complete, staging._spared, _history, _trendDecay);
+                phase("publish").observeSince(publish);
+                MetricsStore.push(connection);
+
+                // Delivered to the web processes when we commit, tagged so
+                // that one running us in-process can ignore its own change
+                statement.execute("NOTIFY " + BookChangeListener.CHANNEL + ", '" + BookChangeListener.SOURCE + "'");
+                return merged;
+            });
+            return Optional.of(index);
+        }
+        catch (SQLException | RuntimeException e)
+        {
+            // It may now have entries that are rolled back
+            _history = null;
+            throw e;
+        }
+        finally
+        {
+            LOG.info("Done. {}", Database.getMetrics());
+        }
+    }
+
+    /**
+     * Runs the work in a transaction holding the index lock, so only one
+     * indexer at a time changes the index while readers carry on as normal
+     * and see the changes when we commit. The transaction is rolled back if
+     * the work throws.
+     */
+    private static <T> T inTransaction(Connection connection, Work<T> work) throws SQLException
+    {
+        try (Statement statement = connection.createStatement())
+        {
+            statement.execute("BEGIN WORK");
+            T result;
+            try
+            {
+                statement.execute("SELECT pg_advisory_xact_lock(" + LOCK_KEY + ")");
+                result = work.run(statement);
+            }
+            catch (SQLException | RuntimeException e)
             {
-                String asin = resultSet.getString("asin");
-                if (asin != null)
+                LOG.info("Rolling back database transaction...");
+                try
+                {
+                    statement.execute("ROLLBACK WORK");
+                }
+                catch (SQLException rollback)
                 {
-                    if (asins.contains(asin))
-                    {
-                        LOG.info("Index already contains book with ASIN={}", asin);
-                        asins.remove(asin);
-                    }
-                    else
-                    {
-                        LOG.info("Obsolete entry in index for book with ASIN={} will be deleted", asin);
-                        removeFromDb.add(asin);
-                    }
+                    e.addSuppressed(rollback);
                 }
+                throw e;
             }
-            statement.close();
+            statement.execute("COMMIT WORK");
+            return result;
+        }
+    }
+
+    private interface Work<T>
+    {
+        T run(Statement statement) throws SQLException;
+    }
+
+    private static void createTables(Statement statement) throws SQLException
+    {
+        statement.execute("CREATE TABLE IF NOT EXISTS books "
+            + "("
+            + "asin text NOT NULL, "
+            + "\"time\" timestamp without time zone NOT NULL, "
+            + "title text, "
+            + "byline text, "
+            + "link text, "
+            + "review text, "
+            + "price text, "
+            + "image text, "
+            + "detail text, "
+            + "category text NOT NULL, "
+            + "CONSTRAINT \"primary\" PRIMARY KEY (category, asin)"
+            + ")");
+        addCategory(statement, "books", "primary");
+        // Backs the newest-first and keyset paged reads in BookLoader
+        statement.execute("DROP INDEX IF EXISTS books_time");
+        statement.execute("CREATE INDEX IF NOT EXISTS books_category_time ON books (category, \"time\" DESC, asin DESC)");
+        statement.execute("CREATE TABLE IF NOT EXISTS history "
+            + "("
+            + "asin text NOT NULL, "
+            + "\"time\" timestamp without time zone NOT NULL, "
+            + "category text NOT NULL, "
+            + "CONSTRAINT \"primary_history\" PRIMARY KEY (category, asin)"
+            + ")");
+        addCategory(statement, "history", "primary_history");
+        // For pruning
+        statement.execute("CREATE INDEX IF NOT EXISTS history_time ON history (\"time\")");
+
+        addColumn(statement, "books", "rank", "integer");
+        addColumn(statement, "books", "trend", "double precision NOT NULL DEFAULT 0");
+        // Every change of rank, and a rank of 0 when a book leaves its list.
+        // Rows only ever arrive in time order, so a BRIN index on time stays
+        // tiny however long the history gets.
+        statement.execute("CREATE TABLE IF NOT EXISTS ranks "
+            + "("
+            + "category text NOT NULL, "
+            + "asin text NOT NULL, "
+            + "\"time\" timestamp without time zone NOT NULL, "
+            + "rank smallint NOT NULL"
+            + ")");
+        statement.execute("CREATE INDEX IF NOT EXISTS ranks_time ON ranks USING brin (\"time\")");
+
+        // The price and rating as numbers, read from the text of books
+        // indexed before they were kept the way BookFields reads them, for
+        // the filters in BookQuery
+        addColumn(statement, "books", "price_cents", "integer",
+            "(SELECT CASE WHEN p <= 2147483647 THEN p END FROM (SELECT CASE WHEN price ~* '^\\s*free' THEN 0 "
+                + "ELSE round(replace(substring(price from '[0-9][0-9,]*(?:\\.[0-9]+)?'), ',', '')::numeric * 100) "
+                + "END AS p) AS v)");
+        addColumn(statement, "books", "rating", "smallint",
+            "(SELECT CASE WHEN r <= 50 THEN r END FROM (SELECT round(substring(review "
+                + "from '^\\s*([0-9]+(?:\\.[0-9]+)?)(?: out of 5 stars)?\\s*$')::numeric * 10) AS r) AS v)");
+        addColumn(statement, "books", "review_count", "integer", null);
+        statement.execute("CREATE INDEX IF NOT EXISTS books_category_price ON books (category, price_cents)");
+        statement.execute("CREATE INDEX IF NOT EXISTS books_category_rating ON books (category, rating)");
+    }
+
+    private static void addColumn(Statement statement, String table, String column, String definition)
+        throws SQLException
+    {
+        addColumn(statement, table, column, definition, null);
+    }
+
+    /**
+     * @param fill sets the column of the rows already there, if not null
+     */
+    private static void addColumn(Statement statement, String table, String column, String definition, String fill)
+        throws SQLException
+    {
+        statement.execute("DO $$ BEGIN "
+            + "IF NOT EXISTS (SELECT 1 FROM information_schema.columns WHERE table_schema = current_schema() "
+            + "AND table_name = '" + table + "' AND column_name = '" + column + "') THEN "
+            + "ALTER TABLE " + table + " ADD COLUMN " + column + " " + definition + "; "
+            + (fill == null ? "" : "UPDATE " + table + " SET " + column + " = " + fill + "; ")
+            + "END IF; "
+            + "END $$");
+    }
+
+    /**
+     * Forgets books removed more than {@code HISTORY_RETENTION_DAYS} ago, so
+     * they may come back. Nothing is forgotten if that isn't set.
+     */
+    private void pruneHistory(Connection connection) throws SQLException
+    {
+        if (_historyRetentionDays <= 0)
+            return;
+
+        long start = System.nanoTime();
+        Instant cutoff = Instant.now().minus(_historyRetentionDays, ChronoUnit.DAYS);
+        try (PreparedStatement statement = connection.prepareStatement(
+            "DELETE FROM history WHERE \"time\" < ?"))
+        {
+            statement.setTimestamp(1, Timestamp.from(cutoff));
+            int pruned = statement.executeUpdate();
+            LOG.info("Pruned {} history entries from before {}.", pruned, cutoff);
+            Metrics.counter("index_history_pruned_total", "History entries removed by the retention policy")
+                .add(pruned);
+        }
+        _history.prune(cutoff);
+        phase("prune").observeSince(start);
+    }
+
+    /**
+     * Tables made before there were categories get the column, with
+     * everything already in them put in the default category.
+     */
+    private static void addCategory(Statement statement, String table, String primaryKey) throws SQLException
+    {
+        statement.execute("DO $$ BEGIN "
+            + "IF NOT EXISTS (SELECT 1 FROM information_schema.columns WHERE table_schema = current_schema() "
+            + "AND table_name = '" + table + "' AND column_name = 'category') THEN "
+            + "ALTER TABLE " + table + " ADD COLUMN category text NOT NULL DEFAULT '" + CrawlList.DEFAULT_NAME + "'; "
+            + "ALTER TABLE " + table + " ALTER COLUMN category DROP DEFAULT; "
+            + "ALTER TABLE " + table + " DROP CONSTRAINT \"" + primaryKey + "\", "
+            + "ADD CONSTRAINT \"" + primaryKey + "\" PRIMARY KEY (category, asin); "
+            + "END IF; "
+            + "END $$");
+    }
 
-            // Remove books that are no longer in database
-            LOG.info("Removing {} old books from index...", removeFromDb.size());
-            if(!removeFromDb.isEmpty())
+    /**
+     * @return the book's place on its list, or null if the list didn't say.
+     */
+    private static Integer parseRank(Book book)
+    {
+        try
+        {
+            int rank = Integer.parseInt(book._rank);
+            return rank > 0 && rank <= Short.MAX_VALUE ? rank : null;
+        }
+        catch (NumberFormatException e)
+        {
+            return null;
+        }
+    }
+
+    private static String orNull(int number)
+    {
+        return number == BookFields.UNKNOWN ? null : Integer.toString(number);
+    }
+
+    /**
+     * Appends a row in the text format of COPY.
+     */
+    private static void appendCopyRow(StringBuilder rows, String... values)
+    {
+        for (int i = 0; i < values.length; i++)
+        {
+            if (i > 0)
+                rows.append('\t');
+            String value = values[i];
+            if (value == null)
+            {
+                rows.append("\\N");
+                continue;
+            }
+            for (int j = 0; j < value.length(); j++)
             {
-                // TODO we can probably move some of the database stuff to Book class
-                PreparedStatement deleteBookStatement = connection.prepareStatement(
-                    "DELETE FROM books WHERE asin = ?");
-                PreparedStatement moveToHistoryStatement = connection.prepareStatement(
-                    "INSERT INTO history VALUES (?, now())");
-                for (String asin : removeFromDb)
+                char c = value.charAt(j);
+                switch (c)
                 {
-                    LOG.info("Removing ASIN={}", asin);
-                    deleteBookStatement.setString(1, asin);
-                    deleteBookStatement.addBatch();
-                    LOG.info("Adding history entry for ASIN={}", asin);
-                    moveToHistoryStatement.setString(1, asin);
-                    moveToHistoryStatement.addBatch();
+                    case '\\':
+                        rows.append("\\\\");
+                        break;
+                    case '\t':
+                        rows.append("\\t");
+                        break;
+                    case '\n':
+                        rows.append("\\n");
+                        break;
+                    case '\r':
+                        rows.append("\\r");
+                        break;
+                    default:
+                        rows.append(c);
                 }
-                deleteBookStatement.executeBatch();
-                deleteBookStatement.close();
-                moveToHistoryStatement.executeBatch();
-                moveToHistoryStatement.close();
             }
-            LOG.info("Removing old books complete.");
+        }
+        rows.append('\n');
+    }
+
+    /**
+     * Brings the crawled categories of the index in line with what was
+     * staged, with a few set-based statements.
+     *
+     * @param complete the categories whose books that weren't staged should
+     * be removed
+     * @param spared by category, books that were on the list but weren't
+     * staged, which stay
+     * @return by category, everything in it afterwards, newest first
+     */
+    private static Map<String, List<Book>> merge(Connection connection, Map<String, ListReport> crawled,
+        Set<String> complete, Map<String, Set<String>> spared, History history, double trendDecay)
+        throws SQLException
+    {
+        Map<String, List<Book>> index = new LinkedHashMap<>();
+        crawled.keySet().forEach(category -> index.put(category, new ArrayList<>()));
+        Array categories = connection.createArrayOf("text", crawled.keySet().toArray());
+
+        // A new book has climbed from just below the list
+        try (PreparedStatement statement = connection.prepareStatement(
+            "UPDATE staged s SET trend = GREATEST(0, c.found + 1 - s.rank) "
+                + "FROM unnest(?::text[], ?::integer[]) AS c (category, found) "
+                + "WHERE s.category = c.category AND s.rank IS NOT NULL"))
+        {
+            statement.setArray(1, categories);
+            statement.setArray(2, connection.createArrayOf("int4",
+                crawled.values().stream().map(ListReport::getFound).toArray()));
+            statement.executeUpdate();
+        }
+
+        // Move the books we keep to their new rank, logging the ones that
+        // moved. Trends are worked out here, a run at a time, so nobody has
+        // to read through the rank history to find them.
+        long start = System.nanoTime();
+        try (PreparedStatement statement = connection.prepareStatement(
+            "WITH s AS (SELECT category, asin, min(rank) AS rank FROM staged GROUP BY category, asin), "
+                + "moved AS (INSERT INTO ranks (category, asin, \"time\", rank) "
+                + "SELECT b.category, b.asin, now(), s.rank FROM books b JOIN s "
+                + "ON s.category = b.category AND s.asin = b.asin "
+                + "WHERE s.rank IS NOT NULL AND b.rank IS DISTINCT FROM s.rank) "
+                + "UPDATE books b SET rank = s.rank, trend = b.trend * ? + COALESCE(b.rank - s.rank, 0) "
+                + "FROM s WHERE s.category = b.category AND s.asin = b.asin"))
+        {
+            statement.setDouble(1, trendDecay);
+            statement.executeUpdate();
+        }
+        phase("rank").observeSince(start);
 
-            LOG.info("Searching history for duplicates...");
-            PreparedStatement duplicateStatement = connection.prepareStatement(
-                "SELECT asin FROM history WHERE asin = ?");
-            asins = asins.stream()
-                .filter(asin -> isInHistory(duplicateStatement, asin))
-                .collect(Collectors.toSet());
+        // Remove books that are no longer on their list, and remember them
+        // so they don't come back, from the lists we have all of. Books
+        // seen on the list whose product page we didn't get, or that the
+        // history kept out of staged, are still on it.
+        start = System.nanoTime();
+        List<String> sparedCategories = new ArrayList<>();
+        List<String> sparedAsins = new ArrayList<>();
+        crawled.forEach((category, report) -> {
+            Set<String> asins = new HashSet<>(report.getUnfetched());
+            asins.addAll(spared.getOrDefault(category, Collections.emptySet()));
+            asins.forEach(asin -> {
+                sparedCategories.add(category);
+                sparedAsins.add(asin);
+            });
+        });
+        Map<String, Set<String>> removed;
+        try (PreparedStatement statement = connection.prepareStatement(
+            "WITH removed AS (DELETE FROM books b WHERE b.category = ANY(?) AND NOT EXISTS "
+                + "(SELECT 1 FROM staged s WHERE s.category = b.category AND s.asin = b.asin) "
+                + "AND NOT EXISTS (SELECT 1 FROM unnest(?::text[], ?::text[]) AS u (category, asin) "
+                + "WHERE u.category = b.category AND u.asin = b.asin) "
+                + "RETURNING category, asin), "
+                + "dropped AS (INSERT INTO ranks (category, asin, \"time\", rank) "
+                + "SELECT category, asin, now(), 0 FROM removed) "
+                + "INSERT INTO history (asin, \"time\", category) SELECT asin, now(), category FROM removed "
+                + "RETURNING category, asin"))
+        {
+            statement.setArray(1, connection.createArrayOf("text", complete.toArray()));
+            statement.setArray(2, connection.createArrayOf("text", sparedCategories.toArray()));
+            statement.setArray(3, connection.createArrayOf("text", sparedAsins.toArray()));
+            removed = queryKeys(statement);
+        }
+        phase("delete").observeSince(start);
 
-            LOG.info("Adding {} new books into index...", asins.size());
-            if(!asins.isEmpty())
+        // The books we keep, as stored, so the caller gets the whole index
+        // back without reading it again
+        start = System.nanoTime();
+        try (PreparedStatement statement = connection.prepareStatement(
+            "SELECT * FROM books WHERE category = ANY(?)"))
+        {
+            statement.setArray(1, categories);
+            try (ResultSet resultSet = statement.executeQuery())
             {
-                // Add books that are new
-                // TODO we can probably move some of the database stuff to Book class
-                PreparedStatement addBookStatement = connection.prepareStatement(
-                    "INSERT INTO books VALUES ("
-                        + "?," // ASIN
-                        + "?," // Index date / time
-                        + "?," // Title
-                        + "?," // Byline
-                        + "?," // Link
-                        + "?," // Review
-                        + "?," // Price
-                        + "?," // Image
-                        + "?)" // Detailed info
-                );
-                for (Book book : books)
-                {
-                    if (!asins.contains(book._asin))
-                        continue;
-                    addBookStatement.setString(1, book._asin);
-                    addBookStatement.setTimestamp(2, Timestamp.from(book._created));
-                    addBookStatement.setString(3, book._title);
-                    addBookStatement.setString(4, book._byline);
-                    addBookStatement.setString(5, book._link);
-                    addBookStatement.setString(6, book._reviews);
-                    addBookStatement.setString(7, book._price);
-                    addBookStatement.setString(8, book._image);
-                    addBookStatement.setString(9, book._detailedInfo);
-                    addBookStatement.addBatch();
-                    LOG.info("Adding ASIN={}", book._asin);
-                }
-                addBookStatement.executeBatch();
-                addBookStatement.close();
+                while (resultSet.next())
+                    index.get(resultSet.getString("category")).add(BookLoader.readBook(resultSet));
             }
-            LOG.info("Adding new books complete.");
         }
-        finally
+        phase("diff").observeSince(start);
+
+        // Add the new books, unless they have been removed before. If a
+        // book is on a list twice the better ranked one wins.
+        start = System.nanoTime();
+        Map<String, Set<String>> added = new HashMap<>();
+        try (PreparedStatement statement = connection.prepareStatement(
+            "WITH added AS (INSERT INTO books SELECT DISTINCT ON (s.category, s.asin) s.* FROM staged s WHERE NOT EXISTS "
+                + "(SELECT 1 FROM history h WHERE h.category = s.category AND h.asin = s.asin) "
+                + "ORDER BY s.category, s.asin, s.\"time\" DESC "
+                + "ON CONFLICT (category, asin) DO NOTHING "
+                + "RETURNING *), "
+                + "entered AS (INSERT INTO ranks (category, asin, \"time\", rank) "
+                + "SELECT category, asin, now(), rank FROM added WHERE rank IS NOT NULL) "
+                + "SELECT * FROM added");
+             ResultSet resultSet = statement.executeQuery())
         {
-            LOG.info("Ending database transaction...");
-            lock.execute("COMMIT WORK;");
-            lock.close();
-            connection.close();
-            LOG.info("Done.");
+            while (resultSet.next())
+            {
+                Book book = BookLoader.readBook(resultSet);
+                String category = resultSet.getString("category");
+                index.get(category).add(book);
+                added.computeIfAbsent(category, c -> new HashSet<>()).add(book._asin);
+            }
+        }
+        phase("insert").observeSince(start);
+
+        for (Map.Entry<String, ListReport> entry : crawled.entrySet())
+        {
+            String category = entry.getKey();
+            Set<String> categoryAdded = added.getOrDefault(category, Collections.emptySet());
+            Set<String> categoryRemoved = removed.getOrDefault(category, Collections.emptySet());
+            index.get(category).sort(BookQuery.NEWEST_FIRST);
+            history.add(category, categoryRemoved, Instant.now());
+
+            LOG.info("{}: crawled {}, added {}, removed {}, now {} books.", category,
+                entry.getValue().getFound(), categoryAdded.size(), categoryRemoved.size(), index.get(category).size());
+            categoryAdded.forEach(asin -> LOG.info("Added ASIN={} to {}", asin, category));
+            categoryRemoved.forEach(asin -> LOG.info("Removed ASIN={} from {} and added history entry", asin, category));
+
+            Metrics.counter("index_books_crawled_total", "Books found by crawling", "category", category)
+                .add(entry.getValue().getFound());
+            Metrics.counter("index_books_removed_total", "Books removed from the index", "category", category)
+                .add(categoryRemoved.size());
+            Metrics.counter("index_books_added_total", "Books added to the index", "category", category)
+                .add(categoryAdded.size());
         }
+        return index;
     }
-    private boolean isInHistory(PreparedStatement duplicateStatement, String asin)
+
+    private static Histogram phase(String name)
     {
-        try
+        return Metrics.timer("index_phase_seconds", "Time spent in each phase of an index run", "phase", name);
+    }
+
+    /**
+     * @return the ASINs returned by the statement, by category.
+     */
+    private static Map<String, Set<String>> queryKeys(PreparedStatement statement) throws SQLException
+    {
+        Map<String, Set<String>> keys = new HashMap<>();
+        try (ResultSet resultSet = statement.executeQuery())
+        {
+            while (resultSet.next())
+            {
+                keys.computeIfAbsent(resultSet.getString("category"), category -> new HashSet<>())
+                    .add(resultSet.getString("asin"));
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Copies crawled books into the temporary {@code staged} table, which
+     * goes away with the connection, {@code INDEX_STAGE_BATCH} at a time as
+     * the crawl finds them, except for books the history says can't come
+     * back, which are kept in {@link #_spared} instead. Each batch is
+     * committed on its own.
+     */
+    private static class Staging
+    {
+        private final CopyManager _copy;
+        private final History _history;
+        private final int _batchSize;
+        private final StringBuilder _rows = new StringBuilder();
+        final Map<String, Set<String>> _spared = new HashMap<>();
+        private int _batched;
+        int _count;
+        int _skipped;
+        long _nanos;
+
+        Staging(Connection connection, History history, int batchSize) throws SQLException
+        {
+            try (Statement statement = connection.createStatement())
+            {
+                statement.execute("CREATE TEMP TABLE staged (LIKE books INCLUDING DEFAULTS)");
+            }
+            _copy = connection.unwrap(PGConnection.class).getCopyAPI();
+            _history = history;
+            _batchSize = batchSize;
+        }
+
+        void add(String category, Book book) throws SQLException
         {
-            duplicateStatement.setString(1, asin);
-            ResultSet rs = duplicateStatement.executeQuery();
-            boolean notInHistory = !rs.next();
-            if(!notInHistory)
+            if (_history.contains(category, book._asin))
             {
-                LOG.info("ASIN={} was found in the history and will be ignored", asin);
+                // Still on the list, so if it is in books it must stay
+                _spared.computeIfAbsent(category, c -> new HashSet<>()).add(book._asin);
+                _skipped++;
+                return;
             }
-            return notInHistory;
+            // The trend of new books is set once the length of the list
+            // is known
+            Integer rank = parseRank(book);
+            appendCopyRow(_rows,
+                book._asin,
+                Timestamp.from(book._created).toString(),
+                book._title,
+                book._byline,
+                book._link,
+                book._reviews,
+                book._price,
+                book._image,
+                book._detailedInfo,
+                category,
+                rank == null ? null : rank.toString(),
+                "0",
+                orNull(book._priceCents),
+                orNull(book._rating),
+                orNull(book._reviewCount));
+            _count++;
+            if (++_batched >= _batchSize)
+                flush();
         }
-        catch (SQLException e)
+
+        void flush() throws SQLException
         {
-            LOG.warn("Exception when searching for duplicate ASIN=" + asin, e);
+            if (_batched == 0)
+                return;
+            long start = System.nanoTime();
+            try
+            {
+                _copy.copyIn(
+                    "COPY staged (asin, \"time\", title, byline, link, review, price, image, detail, category, rank, trend, "
+                        + "price_cents, rating, review_count) FROM STDIN",
+                    new StringReader(_rows.toString()));
+            }
+            catch (IOException e)
+            {
+                // Only the reader could throw this, and it's reading a string
+                throw new SQLException("Failed to stage books", e);
+            }
+            _rows.setLength(0);
+            _batched = 0;
+            _nanos += System.nanoTime() - start;
         }
-        return true;
     }
 }
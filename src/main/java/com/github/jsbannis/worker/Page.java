@@ -0,0 +1,35 @@
+package com.github.jsbannis.worker;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+
+/**
+ * A fetched page, exactly as the server sent it.
+ */
+public class Page
+{
+    final String _url;
+    final int _status;
+    final String _charset;
+    final byte[] _body;
+
+    /**
+     * @param charset from the response's content type, or null to work it
+     * out from the document
+     */
+    public Page(String url, int status, String charset, byte[] body)
+    {
+        _url = url;
+        _status = status;
+        _charset = charset;
+        _body = body;
+    }
+
+    public Document parse() throws IOException
+    {
+        return Jsoup.parse(new ByteArrayInputStream(_body), _charset, _url);
+    }
+}
@@ -2,19 +2,29 @@ package com.github.jsbannis.worker;
 
 import java.io.IOException;
 import java.time.Instant;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
-import java.util.stream.Stream;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
-import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
 import org.jsoup.select.Elements;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import com.github.jsbannis.Env;
 import com.github.jsbannis.data.Book;
+import com.github.jsbannis.data.BookFields;
+import com.github.jsbannis.metrics.Metrics;
 
 /**
  * Created by jared on 3/16/2016.
@@ -23,45 +33,227 @@ public class Parser
 {
     private final static Logger LOG = LoggerFactory.getLogger(Parser.class);
 
-    public static final String BASE = "http://www.amazon.com/Best-Sellers-Kindle-Store/zgbs/digital-text/?_encoding=UTF8&tf=1&pg=";
-    private static final int PAGES = 5;
+    private final static long OFFSET_INCREMENT = 1000;
 
-    public static final int TIMEOUT = 5000;
-    private static final int ATTEMPTS = 5;
+    private static final Listed LISTED_END = new Listed(null, null, null);
+    private static final Found FOUND_END = new Found(null, null);
 
-    private long _timeOffset = 0;
-    private final static long OFFSET_INCREMENT = 1000;
-    private Instant _publishTime = Instant.now();
+    private final List<CrawlList> _lists;
+    private final int _parallelism;
+    private final Fetcher _fetcher;
+    private final DetailCache _cache;
+    private final int _queueSize = Env.getInt("CRAWL_QUEUE_SIZE", 64);
+
+    // Product pages of the current crawl, so a book on several lists is
+    // only fetched once
+    private final Map<String, CompletableFuture<Optional<DetailedInfo>>> _details = new ConcurrentHashMap<>();
 
-    public List<Book> parse()
+    /**
+     * Creates a parser for the lists in {@code CRAWL_LISTS}, fetching
+     * {@code CRAWL_PARALLELISM} pages at once.
+     */
+    public Parser()
     {
-        _publishTime = Instant.now();
-        _timeOffset = 0;
+        this(new Fetcher(), DetailCache.DISABLED);
+    }
 
-        LOG.info("Begin crawling...");
-        return IntStream.rangeClosed(1, PAGES)
-            .mapToObj(Integer::valueOf)
-            .flatMap(this::parsePage)
-            .collect(Collectors.toList());
+    /**
+     * Creates a parser for the lists in {@code CRAWL_LISTS} that only fetches
+     * product pages missing from the given cache.
+     */
+    public Parser(Fetcher fetcher, DetailCache cache)
+    {
+        this(CrawlList.load(), Env.getInt("CRAWL_PARALLELISM", 4), fetcher, cache);
     }
 
-    private Stream<Book> parsePage(int page)
+    /**
+     * @param lists the lists to crawl
+     * @param parallelism number of product pages fetched at once, across all
+     * lists, and most lists read at once
+     * @param fetcher used for all requests
+     * @param cache product pages we already know about
+     */
+    public Parser(List<CrawlList> lists, int parallelism, Fetcher fetcher, DetailCache cache)
+    {
+        _lists = lists;
+        _parallelism = parallelism;
+        _fetcher = fetcher;
+        _cache = cache;
+    }
+
+    /**
+     * Crawls all lists at once, as a pipeline: list pages are read one
+     * after another for each list, product pages are fetched for the books
+     * on them as they come, and finished books are handed to the sink on the
+     * calling thread. The stages are joined by queues of
+     * {@code CRAWL_QUEUE_SIZE} entries, so whatever the sink does overlaps
+     * with the crawl, and a slow sink holds the crawl back instead of
+     * letting books pile up in memory.
+     *
+     * @param sink given each book found, with the name of its list, in no
+     * particular order
+     * @return how the crawl of each list went, by list name, in the order
+     * the lists were given
+     * @throws E if the sink fails, in which case the crawl is stopped
+     */
+    <E extends Exception> Map<String, ListReport> crawl(Sink<E> sink) throws E
     {
-        String url = getURL(page);
-        LOG.info("Parsing page {} at URL \"{}\"", page, url);
-        Optional<Document> doc = getDocument(url, 0);
+        Instant publishTime = Instant.now();
+        _fetcher.beginCrawl();
+        _details.clear();
+
+        Map<String, ListReport> reports = new LinkedHashMap<>();
+        _lists.forEach(list -> reports.put(list._name, new ListReport(list)));
+        BlockingQueue<Listed> listed = new ArrayBlockingQueue<>(_queueSize);
+        BlockingQueue<Found> found = new ArrayBlockingQueue<>(_queueSize);
+        AtomicInteger listing = new AtomicInteger(_lists.size());
+        AtomicReference<RuntimeException> failure = new AtomicReference<>();
+
+        ExecutorService listers = Executors.newFixedThreadPool(Math.min(_lists.size(), _parallelism));
+        ExecutorService fetchers = Executors.newFixedThreadPool(_parallelism);
+        try
+        {
+            LOG.info("Begin crawling {} lists...", _lists.size());
+            for (CrawlList list : _lists)
+            {
+                listers.execute(() -> {
+                    try
+                    {
+                        listBooks(reports.get(list._name), publishTime, listed);
+                    }
+                    catch (RuntimeException e)
+                    {
+                        failure.compareAndSet(null, e);
+                    }
+                    finally
+                    {
+                        // The last list done tells every fetcher to stop
+                        if (listing.decrementAndGet() == 0)
+                            end(listed, LISTED_END, _parallelism);
+                    }
+                });
+            }
+            for (int i = 0; i < _parallelism; i++)
+                fetchers.execute(() -> fetchBooks(listed, found, failure));
+
+            int ended = 0;
+            while (ended < _parallelism)
+            {
+                Found next = found.take();
+                if (next == FOUND_END)
+                    ended++;
+                else
+                    sink.accept(next._list, next._book);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while crawling", e);
+        }
+        finally
+        {
+            listers.shutdownNow();
+            fetchers.shutdownNow();
+        }
+
+        if (failure.get() != null)
+            throw failure.get();
+        LOG.info("Fetched {} distinct product pages for {} lists.", _details.size(), _lists.size());
+        return reports;
+    }
+
+    /**
+     * Reads the pages of one list in order, so each book's place on the list
+     * is known as soon as its page is.
+     */
+    private void listBooks(ListReport report, Instant publishTime, BlockingQueue<Listed> listed)
+    {
+        int rank = 0;
+        try
+        {
+            for (int page = 1; page <= report._list._pages; page++)
+            {
+                Elements elements = parsePage(report._list, page);
+                if (!elements.isEmpty())
+                    report._pagesRead.incrementAndGet();
+                for (Element element : elements)
+                {
+                    report._listed.incrementAndGet();
+                    listed.put(new Listed(report, element, getPublishTime(publishTime, rank++)));
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            // The crawl was stopped
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void fetchBooks(BlockingQueue<Listed> listed, BlockingQueue<Found> found,
+        AtomicReference<RuntimeException> failure)
+    {
+        try
+        {
+            for (Listed next = listed.take(); next != LISTED_END; next = listed.take())
+            {
+                // One bad book shouldn't stall the others, the crawl fails
+                // once everyone is done
+                Optional<Book> book;
+                try
+                {
+                    book = processBook(next._element, next._publishTime);
+                }
+                catch (RuntimeException e)
+                {
+                    failure.compareAndSet(null, e);
+                    continue;
+                }
+                if (book.isPresent())
+                {
+                    next._report._found.incrementAndGet();
+                    found.put(new Found(next._report._list._name, book.get()));
+                }
+                else
+                {
+                    next._report.unfetched(getAttributeBySelect(next._element, "href", "div.zg_title", "a"));
+                }
+            }
+            found.put(FOUND_END);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static <T> void end(BlockingQueue<T> queue, T end, int consumers)
+    {
+        try
+        {
+            for (int i = 0; i < consumers; i++)
+                queue.put(end);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Elements parsePage(CrawlList list, int page)
+    {
+        String url = list.getURL(page);
+        LOG.info("Parsing {} page {} at URL \"{}\"", list, page, url);
+        Optional<Document> doc = _fetcher.getDocument(url);
 
         if (!doc.isPresent())
-            return Stream.empty();
+            return new Elements();
 
-        Elements bookElements = doc.get().getElementsByClass("zg_itemImmersion");
-        return bookElements.stream()
-            .map(this::processBook)
-            .filter(Optional::isPresent)
-            .map(Optional::get);
+        return doc.get().getElementsByClass("zg_itemImmersion");
     }
 
-    private Optional<Book> processBook(Element bookElement)
+    Optional<Book> processBook(Element bookElement, Instant publishTime)
     {
         String link = getAttributeBySelect(bookElement, "href", "div.zg_title", "a");
         String title = getTextBySelect(bookElement, "div.zg_title", "a");
@@ -70,34 +262,55 @@ public class Parser
         if (!detailedInfo.isPresent())
             return Optional.empty();
 
+        String reviews = getTextBySelect(bookElement, "div.zg_reviews", "span.a-icon-alt");
+        String reviewCount = getTextBySelect(bookElement, "div.zg_reviews", "a.a-size-small");
+        String price = getTextBySelect(bookElement, "div.zg_price", "strong.price");
         Book book = new Book(
             detailedInfo.get()._asin,
-            getTextBySelect(bookElement, "span.zg_rankNumber"),
+            // Shown as "12."
+            getTextBySelect(bookElement, "span.zg_rankNumber").replaceAll("[^0-9]", ""),
             detailedInfo.get()._title.orElse(title),
             getTextBySelect(bookElement, "div.zg_byline"),
             link,
-            getTextBySelect(bookElement, "div.zg_reviews", "span.a-icon-alt"),
-            getTextBySelect(bookElement, "div.zg_price", "strong.price"),
+            reviews,
+            price,
             processImageString(getAttributeBySelect(bookElement, "src", "div.zg_image", "img")),
             detailedInfo.get()._detailedInfo,
-            getPublishTime());
+            publishTime,
+            0,
+            BookFields.parsePriceCents(price),
+            BookFields.parseRating(reviews),
+            BookFields.parseCount(reviewCount));
+
+        // Every book has a price, but new ones have no reviews yet
+        if (book._priceCents == BookFields.UNKNOWN)
+            countParseFailure("price", price);
+        if (book._rating == BookFields.UNKNOWN && !reviews.isEmpty())
+            countParseFailure("rating", reviews);
+        if (book._reviewCount == BookFields.UNKNOWN && !reviewCount.isEmpty())
+            countParseFailure("review_count", reviewCount);
         LOG.info("Found book {}", book.toShortString());
         return Optional.of(book);
     }
 
+    private void countParseFailure(String field, String text)
+    {
+        LOG.debug("Could not read the {} from \"{}\"", field, text);
+        Metrics.counter("crawl_parse_failures_total", "Books with a field that couldn't be read", "field", field)
+            .increment();
+    }
+
     /**
-     * We crawl in the forward direction, but want the books to have a created
-     * time such that bigger rank = older (the 'worse' books show up later
-     * in the feed).
+     * We want the books to have a created time such that bigger rank = older
+     * (the 'worse' books show up later in the feed).
      * <p>
-     * We have a fixed publish time and decrement each by a second to push the
-     * worse books into the past.
+     * We have a fixed publish time and push each rank a second further into
+     * the past. Since this only depends on the rank, the order in which pages
+     * are fetched doesn't matter.
      */
-    private Instant getPublishTime()
+    private static Instant getPublishTime(Instant publishTime, int rank)
     {
-        Instant time = _publishTime.minusMillis(_timeOffset);
-        _timeOffset += OFFSET_INCREMENT;
-        return time;
+        return publishTime.minusMillis(rank * OFFSET_INCREMENT);
     }
 
     private String processImageString(String imageString)
@@ -135,25 +348,81 @@ public class Parser
         return element.isPresent() ? element.get().attr(attribute).trim() : "";
     }
 
-    private String getURL(int page)
+    Optional<DetailedInfo> getDetailedInfo(String bookUrl, String title)
     {
-        return BASE + Integer.toString(page);
+        // Links to the same book differ between lists, so key on the ASIN.
+        // Whoever gets here first does the work, anyone else waits for it.
+        CompletableFuture<Optional<DetailedInfo>> mine = new CompletableFuture<>();
+        CompletableFuture<Optional<DetailedInfo>> theirs = _details.putIfAbsent(DetailCache.keyOf(bookUrl), mine);
+        if (theirs != null)
+            return theirs.join();
+
+        try
+        {
+            mine.complete(lookUpDetailedInfo(bookUrl, title));
+        }
+        catch (RuntimeException e)
+        {
+            mine.completeExceptionally(e);
+        }
+        return mine.join();
     }
 
-    private Optional<DetailedInfo> getDetailedInfo(String bookUrl, String title)
+    private Optional<DetailedInfo> lookUpDetailedInfo(String bookUrl, String title)
     {
-        Optional<Document> document = getDocument(bookUrl, 1);
-        if (!document.isPresent())
+        Optional<DetailedInfo> cached = _cache.get(bookUrl);
+        if (cached.isPresent())
+            return cached;
+
+        Optional<DetailedInfo> detailedInfo = fetchDetailedInfo(bookUrl, title);
+        detailedInfo.ifPresent(info -> _cache.put(bookUrl, info));
+        return detailedInfo;
+    }
+
+    private Optional<DetailedInfo> fetchDetailedInfo(String bookUrl, String title)
+    {
+        Optional<Page> page = _fetcher.fetch(bookUrl);
+        if (!page.isPresent())
             return Optional.empty();
+        return extractDetailedInfo(page.get(), title);
+    }
 
+    /**
+     * Reads the product page from just the parts we need, and only parses the
+     * whole page if some of them couldn't be found that way.
+     */
+    Optional<DetailedInfo> extractDetailedInfo(Page page, String title)
+    {
+        Optional<Document> parts = DetailExtractor.extract(page);
+        if (parts.isPresent())
+        {
+            Optional<DetailedInfo> detailedInfo = extractDetailedInfo(parts.get(), title);
+            if (detailedInfo.isPresent())
+                return detailedInfo;
+        }
+
+        Metrics.counter("crawl_detail_full_parses_total", "Product pages that had to be parsed in full").increment();
+        try
+        {
+            return extractDetailedInfo(page.parse(), title);
+        }
+        catch (IOException e)
+        {
+            LOG.warn("Could not parse page \"{}\"", page._url, e);
+            return Optional.empty();
+        }
+    }
+
+    Optional<DetailedInfo> extractDetailedInfo(Document document, String title)
+    {
         String description = getTextBySelect(
-            document.get(),
+            document,
             "div#bookDescription_feature_div",
             "noscript")
             .trim();
 
         Optional<Element> details = selectElement(
-            document.get(), "div#detail-bullets");
+            document, "div#detail-bullets");
         if (!details.isPresent())
             return Optional.empty();
 
@@ -166,7 +435,7 @@ public class Parser
         if (asin.trim().isEmpty())
             return Optional.empty();
 
-        String longTitle = getTextBySelect(document.get(), "title");
+        String longTitle = getTextBySelect(document, "title");
         if (!longTitle.isEmpty())
         {
             longTitle = longTitle
@@ -183,46 +452,110 @@ public class Parser
         return Optional.of(new DetailedInfo(asin, description));
     }
 
-    private Optional<Document> getDocument(String url, int attempt)
+    /**
+     * Takes the books a crawl finds.
+     */
+    interface Sink<E extends Exception>
     {
-        try
+        void accept(String list, Book book) throws E;
+    }
+
+    /**
+     * How the crawl of one list went.
+     */
+    static class ListReport
+    {
+        final CrawlList _list;
+        final AtomicInteger _pagesRead = new AtomicInteger();
+        final AtomicInteger _listed = new AtomicInteger();
+        final AtomicInteger _found = new AtomicInteger();
+        // Books on the list whose product page we didn't get, by the ASIN
+        // in their link, and how many had no ASIN there
+        final Set<String> _unfetched = ConcurrentHashMap.newKeySet();
+        final AtomicInteger _unidentified = new AtomicInteger();
+
+        ListReport(CrawlList list)
         {
-            return Optional.of(Jsoup.connect(url)
-                .userAgent("Mozilla/5.0 Chrome/26.0.1410.64 Safari/537.31")
-                .timeout(TIMEOUT)
-                .ignoreHttpErrors(true)
-                .get());
+            _list = list;
         }
-        catch (IOException e)
+
+        private void unfetched(String link)
         {
-            if (attempt < ATTEMPTS)
-            {
-                LOG.info("Get page request for \"{}\" failed. Attempt {} of {}. Retrying...", url, attempt, ATTEMPTS);
-                return getDocument(url, attempt + 1);
-            }
-            LOG.warn("Get page request failed on final attempt. Giving up.");
-            return Optional.empty();
+            String asin = DetailCache.keyOf(link);
+            if (History.pack(asin) >= 0)
+                _unfetched.add(asin);
+            else
+                _unidentified.incrementAndGet();
+        }
+
+        /**
+         * @return the number of books handed to the sink.
+         */
+        int getFound()
+        {
+            return _found.get();
+        }
+
+        /**
+         * @return the ASINs of books seen on the list but not handed to the
+         * sink, which are still on it.
+         */
+        Set<String> getUnfetched()
+        {
+            return _unfetched;
+        }
+
+        /**
+         * @param maxMissingPercent share of the books on the list that may
+         * be missing both their product page and an ASIN in their link
+         * @return whether every page of the list had books on it, and enough
+         * of those books are known, to trust that a book missing from the
+         * crawl is really gone from the list.
+         */
+        boolean isComplete(int maxMissingPercent)
+        {
+            int listed = _listed.get();
+            return _pagesRead.get() == _list._pages && listed > 0
+                && _unidentified.get() * 100L <= (long) listed * maxMissingPercent;
+        }
+
+        @Override
+        public String toString()
+        {
+            return _list + ": " + _pagesRead + " of " + _list._pages + " pages, "
+                + _found + " of " + _listed + " books, " + _unidentified + " unidentified";
         }
     }
 
-    private class DetailedInfo
+    /**
+     * A book seen on a list page, waiting for its product page.
+     */
+    private static class Listed
     {
-        final String _asin;
-        final String _detailedInfo;
-        final Optional<String> _title;
+        final ListReport _report;
+        final Element _element;
+        final Instant _publishTime;
 
-        private DetailedInfo(String asin, String description)
+        Listed(ListReport report, Element element, Instant publishTime)
         {
-            this(asin, description, null);
+            _report = report;
+            _element = element;
+            _publishTime = publishTime;
         }
-        public DetailedInfo(String asin, String description, String longTitle)
-        {
-            assert asin != null;
-            assert description != null;
+    }
+
+    /**
+     * A finished book, waiting for the sink.
+     */
+    private static class Found
+    {
+        final String _list;
+        final Book _book;
 
-            _asin = asin;
-            _detailedInfo = description;
-            _title = Optional.ofNullable(longTitle);
+        Found(String list, Book book)
+        {
+            _list = list;
+            _book = book;
         }
     }
 }
@@ -0,0 +1,41 @@
+package com.github.jsbannis.worker;
+
+import java.io.IOException;
+import java.util.Optional;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fetches pages as usual and writes a copy of each into a
+ * {@link CrawlArchive}.
+ */
+public class RecordingFetcher extends Fetcher
+{
+    private final static Logger LOG = LoggerFactory.getLogger(RecordingFetcher.class);
+
+    private final CrawlArchive _archive;
+
+    public RecordingFetcher(CrawlArchive archive)
+    {
+        _archive = archive;
+    }
+
+    @Override
+    public Optional<Page> fetch(String url)
+    {
+        Optional<Page> page = super.fetch(url);
+        if (page.isPresent())
+        {
+            try
+            {
+                _archive.append(page.get());
+            }
+            catch (IOException e)
+            {
+                LOG.warn("Could not record page \"{}\"", url, e);
+            }
+        }
+        return page;
+    }
+}
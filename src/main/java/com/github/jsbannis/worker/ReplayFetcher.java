@@ -0,0 +1,41 @@
+package com.github.jsbannis.worker;
+
+import java.io.IOException;
+import java.util.Optional;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Serves pages from a {@link CrawlArchive} instead of the network, with no
+ * rate limit.
+ */
+public class ReplayFetcher extends Fetcher
+{
+    private final static Logger LOG = LoggerFactory.getLogger(ReplayFetcher.class);
+
+    private final CrawlArchive _archive;
+
+    public ReplayFetcher(CrawlArchive archive)
+    {
+        super(0, Integer.MAX_VALUE);
+        _archive = archive;
+    }
+
+    @Override
+    public Optional<Page> fetch(String url)
+    {
+        try
+        {
+            Optional<Page> page = _archive.get(url);
+            if (!page.isPresent())
+                LOG.warn("Page \"{}\" is not in the archive", url);
+            return page;
+        }
+        catch (IOException e)
+        {
+            LOG.warn("Could not read page \"{}\" from the archive", url, e);
+            return Optional.empty();
+        }
+    }
+}
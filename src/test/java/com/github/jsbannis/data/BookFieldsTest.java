@@ -0,0 +1,64 @@
+package com.github.jsbannis.data;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class BookFieldsTest
+{
+    @Test
+    public void readsPrices()
+    {
+        assertEquals(0, BookFields.parsePriceCents("Free"));
+        assertEquals(0, BookFields.parsePriceCents(" FREE with Kindle Unlimited"));
+        assertEquals(0, BookFields.parsePriceCents("$0.00"));
+        assertEquals(299, BookFields.parsePriceCents("$2.99"));
+        assertEquals(129999, BookFields.parsePriceCents("$1,299.99"));
+        assertEquals(500, BookFields.parsePriceCents("$5"));
+        assertEquals(100, BookFields.parsePriceCents("$0.995"));
+        // A range is read as its lowest price
+        assertEquals(0, BookFields.parsePriceCents("$0.00 - $2.99"));
+    }
+
+    @Test
+    public void doesNotReadOtherPrices()
+    {
+        assertEquals(BookFields.UNKNOWN, BookFields.parsePriceCents(null));
+        assertEquals(BookFields.UNKNOWN, BookFields.parsePriceCents(""));
+        assertEquals(BookFields.UNKNOWN, BookFields.parsePriceCents("Currently unavailable"));
+        assertEquals(BookFields.UNKNOWN, BookFields.parsePriceCents("$99,999,999,999.00"));
+    }
+
+    @Test
+    public void readsRatings()
+    {
+        assertEquals(45, BookFields.parseRating("4.5 out of 5 stars"));
+        assertEquals(50, BookFields.parseRating("5.0 out of 5 stars"));
+        assertEquals(0, BookFields.parseRating("0 out of 5 stars"));
+        assertEquals(43, BookFields.parseRating(" 4.25 out of 5 stars "));
+        assertEquals(40, BookFields.parseRating("4"));
+    }
+
+    @Test
+    public void doesNotReadOtherRatings()
+    {
+        assertEquals(BookFields.UNKNOWN, BookFields.parseRating(null));
+        assertEquals(BookFields.UNKNOWN, BookFields.parseRating(""));
+        assertEquals(BookFields.UNKNOWN, BookFields.parseRating("5.5 out of 5 stars"));
+        assertEquals(BookFields.UNKNOWN, BookFields.parseRating("6 out of 5 stars"));
+        assertEquals(BookFields.UNKNOWN, BookFields.parseRating("4.5 out of 10 stars"));
+        assertEquals(BookFields.UNKNOWN, BookFields.parseRating("Be the first to review"));
+        assertEquals(BookFields.UNKNOWN, BookFields.parseRating("-4.5"));
+    }
+
+    @Test
+    public void readsCounts()
+    {
+        assertEquals(1234, BookFields.parseCount("1,234"));
+        assertEquals(7, BookFields.parseCount(" 7 "));
+        assertEquals(BookFields.UNKNOWN, BookFields.parseCount(null));
+        assertEquals(BookFields.UNKNOWN, BookFields.parseCount("many"));
+        assertEquals(BookFields.UNKNOWN, BookFields.parseCount("1.5"));
+        assertEquals(BookFields.UNKNOWN, BookFields.parseCount("99,999,999,999"));
+    }
+}
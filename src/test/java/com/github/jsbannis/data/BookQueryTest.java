@@ -0,0 +1,56 @@
+package com.github.jsbannis.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class BookQueryTest
+{
+    @Test
+    public void parsesFilters()
+    {
+        BookQuery query = BookQuery.parse("kindle", null, null, null, "1.99", "4.5");
+        assertEquals(199, query._maxPriceCents);
+        assertEquals(45, query._minRating);
+
+        query = BookQuery.parse("kindle", null, null, null, "0", "5");
+        assertEquals(0, query._maxPriceCents);
+        assertEquals(50, query._minRating);
+    }
+
+    @Test
+    public void rejectsMalformedFilters()
+    {
+        for (String maxPrice : new String[] {"-5", "abc1", "1.999", "$1", "", " 1", "1e3", "99999999999"})
+            assertRejected(null, maxPrice, null);
+        for (String minRating : new String[] {"-1", "5.5", "6", "4.55", "4.5 out of 5 stars", ""})
+            assertRejected(null, null, minRating);
+        assertRejected("0", null, null);
+        assertRejected("501", null, null);
+    }
+
+    @Test
+    public void limitsPartialQueriesByDefault()
+    {
+        assertTrue(BookQuery.parse("kindle", null, null, null, null, null).isAll());
+        assertEquals(BookQuery.DEFAULT_LIMIT,
+            BookQuery.parse("kindle", null, null, "2016-03-16T00:00:00Z", null, null).getLimit());
+        assertEquals(BookQuery.DEFAULT_LIMIT, BookQuery.parse("kindle", null, null, null, "0", null).getLimit());
+        assertEquals(20, BookQuery.parse("kindle", "20", null, "2016-03-16T00:00:00Z", null, null).getLimit());
+    }
+
+    private static void assertRejected(String limit, String maxPrice, String minRating)
+    {
+        try
+        {
+            BookQuery.parse("kindle", limit, null, null, maxPrice, minRating);
+            fail("Accepted limit=" + limit + " maxPrice=" + maxPrice + " minRating=" + minRating);
+        }
+        catch (IllegalArgumentException e)
+        {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.github.jsbannis.rss;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import com.github.jsbannis.data.Book;
+
+/**
+ * Checks that {@link RssWriter} writes exactly what {@link RssGenerator}
+ * does through ROME.
+ */
+public class RssWriterTest
+{
+    private static final Instant CREATED = Instant.parse("2016-03-16T20:24:41Z");
+
+    @Test
+    public void matchesRomeForPlainBooks() throws Exception
+    {
+        List<Book> books = new ArrayList<>();
+        for (int i = 0; i < 20; i++)
+        {
+            books.add(book("Book Number " + i, "by Author " + i,
+                "A gripping story, number " + i + ".", CREATED.minusSeconds(i)));
+        }
+        assertSameAsRome(books);
+    }
+
+    @Test
+    public void matchesRomeForMarkup() throws Exception
+    {
+        assertSameAsRome(Arrays.asList(
+            book("Mystery & Suspense <Part 1>", "by O'Brien & \"Sons\"",
+                "A <b>bold</b> &amp; <i>daring</i> tale > all others", CREATED),
+            book("Already escaped &lt;b&gt;", "by &amp;", "<![CDATA[not really]]>", CREATED)));
+    }
+
+    @Test
+    public void matchesRomeForLineBreaksAndWhitespace() throws Exception
+    {
+        assertSameAsRome(Arrays.asList(
+            book("  Padded title \t", "\nby Someone\n", "First line\nSecond line\r\nThird\rline", CREATED),
+            book("Tabs\tinside", "by\tTabs", "\t Leading and trailing \n", CREATED)));
+    }
+
+    @Test
+    public void matchesRomeForBlankFields() throws Exception
+    {
+        assertSameAsRome(Arrays.asList(
+            book("", "", "", CREATED),
+            book("   ", " \n ", "\t", CREATED)));
+    }
+
+    @Test
+    public void matchesRomeForNonAscii() throws Exception
+    {
+        assertSameAsRome(Arrays.asList(
+            book("Café naïve über", "by José Ñuñez", "日本語 — “quoted”", CREATED),
+            book("Emoji 📚", "by 😀", "Music 𝄞 clef", CREATED)));
+    }
+
+    @Test
+    public void cachedItemsMatchWrittenOnes() throws Exception
+    {
+        List<Book> books = Arrays.asList(
+            book("One & <two>", "by Three", "Four\nfive", CREATED),
+            book("Six", "by Seven", "Eight", CREATED.minusSeconds(1)));
+
+        ByteArrayOutputStream cached = new ByteArrayOutputStream();
+        try (RssWriter writer = new RssWriter(cached))
+        {
+            for (Book book : books)
+                writer.writeItem(RssWriter.encode(book));
+            writer.finish();
+        }
+        assertArrayEquals(write(books), cached.toByteArray());
+    }
+
+    private static void assertSameAsRome(List<Book> books) throws Exception
+    {
+        byte[] rome = new RssGenerator().createRss(books).getBytes(StandardCharsets.UTF_8);
+        byte[] ours = write(books);
+        // Compared as text first so a failure shows where they differ
+        assertEquals(new String(rome, StandardCharsets.UTF_8), new String(ours, StandardCharsets.UTF_8));
+        assertArrayEquals(rome, ours);
+    }
+
+    private static byte[] write(List<Book> books) throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (RssWriter writer = new RssWriter(out))
+        {
+            writer.write(books);
+        }
+        return out.toByteArray();
+    }
+
+    private static Book book(String title, String byline, String detail, Instant created)
+    {
+        return new Book("B00TEST001", "1", title, byline,
+            "http://www.amazon.com/dp/B00TEST001?tag=a&ref=b", "4.5 out of 5 stars", "$0.00",
+            "https://images-na.ssl-images-amazon.com/images/I/51Ab.jpg", detail, created);
+    }
+}
@@ -0,0 +1,117 @@
+package com.github.jsbannis.search;
+
+import static org.junit.Assert.assertEquals;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+import com.github.jsbannis.data.Book;
+
+public class SearchIndexTest
+{
+    private final SearchIndex _index = new SearchIndex();
+
+    @Test
+    public void findsBooksByAllTheirWords()
+    {
+        _index.update("kindle", books("A", "B", "C"));
+        assertEquals("CBA", search("common"));
+        assertEquals("B", search("title b"));
+        assertEquals("B", search("TÍTLE B"));
+        assertEquals("", search("title z"));
+        assertEquals("", search("  "));
+    }
+
+    @Test
+    public void leavesOutRemovedBooks()
+    {
+        _index.update("kindle", books("A", "B", "C", "D"));
+        _index.update("kindle", books("A", "C", "D", "E"));
+        assertEquals("EDCA", search("common"));
+        assertEquals("", search("b"));
+        assertEquals("E", search("e"));
+    }
+
+    @Test
+    public void findsBooksThatCameBackOnce()
+    {
+        _index.update("kindle", books("A", "B", "C", "D", "E", "X"));
+        _index.update("kindle", books("A", "B", "C", "D", "E"));
+        _index.update("kindle", books("A", "B", "C", "D", "E", "X"));
+        assertEquals("XEDCBA", search("common"));
+
+        // Removing another book must not forget where the one that came
+        // back is now
+        _index.update("kindle", books("A", "B", "C", "D", "X"));
+        assertEquals("XDCBA", search("common"));
+        _index.update("kindle", books("A", "B", "C", "D", "X"));
+        assertEquals("XDCBA", search("common"));
+        _index.update("kindle", books("A", "B", "C", "X"));
+        assertEquals("XCBA", search("common"));
+        assertEquals("X", search("x"));
+    }
+
+    @Test
+    public void rebuildsOnceMoreThanHalfIsGone()
+    {
+        _index.update("kindle", books("A", "B", "C", "D", "E", "F"));
+        _index.update("kindle", books("A", "B", "C", "D"));
+        _index.update("kindle", books("A", "B", "C"));
+        assertEquals(6, _index.size("kindle"));
+        assertEquals("CBA", search("common"));
+
+        _index.update("kindle", books("A", "B"));
+        assertEquals(2, _index.size("kindle"));
+        assertEquals("BA", search("common"));
+
+        // Removed before the rebuild, so new again
+        _index.update("kindle", books("A", "B", "F"));
+        assertEquals(3, _index.size("kindle"));
+        assertEquals("FBA", search("common"));
+        _index.update("kindle", books("F"));
+        assertEquals("F", search("common"));
+        assertEquals("", search("a"));
+    }
+
+    @Test
+    public void appliesFilterAndLimit()
+    {
+        _index.update("kindle", books("A", "B", "C", "D"));
+        assertEquals("DB", search("common", book -> !book._asin.equals("C") && !book._asin.equals("A"), 10));
+        assertEquals("DC", search("common", book -> true, 2));
+        assertEquals("", _index.search("other", "common", book -> true, 10).stream()
+            .map(book -> book._asin).collect(Collectors.joining()));
+    }
+
+    private String search(String query)
+    {
+        return search(query, book -> true, 100);
+    }
+
+    private String search(String query, Predicate<Book> filter, int limit)
+    {
+        return _index.search("kindle", query, filter, limit).stream()
+            .map(book -> book._asin)
+            .collect(Collectors.joining());
+    }
+
+    /**
+     * @return a book for each ASIN, each newer than the one before, all with
+     * the word "common" and their own "title X".
+     */
+    private static List<Book> books(String... asins)
+    {
+        List<Book> books = new ArrayList<>();
+        for (String asin : Arrays.asList(asins))
+        {
+            books.add(new Book(asin, "1", "Title " + asin, "by Common Author", "http://www.amazon.com/dp/" + asin,
+                null, null, null, "Details", Instant.EPOCH.plusSeconds(asin.charAt(0))));
+        }
+        return books;
+    }
+}
@@ -0,0 +1,81 @@
+package com.github.jsbannis.worker;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CrawlArchiveTest
+{
+    @Rule
+    public TemporaryFolder _folder = new TemporaryFolder();
+
+    @Test
+    public void replaysRecordedPages() throws Exception
+    {
+        File file = _folder.newFile("crawl.archive");
+        try (CrawlArchive archive = CrawlArchive.forRecording(file))
+        {
+            archive.append(page("http://example.com/1", "first"));
+            archive.append(page("http://example.com/2", "second"));
+            archive.append(page("http://example.com/1", "first again"));
+        }
+
+        try (CrawlArchive archive = CrawlArchive.forReplay(file))
+        {
+            assertEquals(2, archive.size());
+            assertBody("first again", archive.get("http://example.com/1"));
+            assertBody("second", archive.get("http://example.com/2"));
+            assertFalse(archive.get("http://example.com/3").isPresent());
+        }
+    }
+
+    @Test
+    public void appendsAfterTruncatedRecord() throws Exception
+    {
+        File file = _folder.newFile("crawl.archive");
+        try (CrawlArchive archive = CrawlArchive.forRecording(file))
+        {
+            archive.append(page("http://example.com/1", "first"));
+            archive.append(page("http://example.com/2", "second"));
+        }
+        // As if the crawl died while writing the second record
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw"))
+        {
+            out.setLength(out.length() - 5);
+        }
+
+        try (CrawlArchive archive = CrawlArchive.forRecording(file))
+        {
+            archive.append(page("http://example.com/3", "third"));
+        }
+
+        try (CrawlArchive archive = CrawlArchive.forReplay(file))
+        {
+            assertEquals(2, archive.size());
+            assertBody("first", archive.get("http://example.com/1"));
+            assertFalse(archive.get("http://example.com/2").isPresent());
+            assertBody("third", archive.get("http://example.com/3"));
+        }
+    }
+
+    private static Page page(String url, String body)
+    {
+        return new Page(url, 200, "UTF-8", body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void assertBody(String expected, Optional<Page> page)
+    {
+        assertTrue(page.isPresent());
+        assertArrayEquals(expected.getBytes(StandardCharsets.UTF_8), page.get()._body);
+    }
+}
@@ -0,0 +1,142 @@
+package com.github.jsbannis.worker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.Optional;
+
+import org.jsoup.nodes.Document;
+import org.junit.Test;
+
+/**
+ * Reads product pages through {@link DetailExtractor} and by parsing them
+ * whole, and checks the two agree.
+ */
+public class DetailExtractorTest
+{
+    private static final String URL = "http://www.amazon.com/Book-Number-1-ebook/dp/B010000001/";
+    private static final String TITLE = "Book Number 1: A Thrilling Tale of Mystery and...";
+    private static final String FAKE = "<div id=\"" + DetailExtractor.DESCRIPTION_ID + "\"><noscript>Fake</noscript></div>";
+
+    private final Parser _parser = new Parser(Collections.emptyList(), 1, new Fetcher(0, 1), DetailCache.DISABLED);
+    private final String _detail = fixture();
+
+    @Test
+    public void extractsWhatTheFullParseFinds() throws Exception
+    {
+        Page page = page(_detail, "UTF-8");
+        DetailedInfo info = assertExtracted(page);
+        assertEquals("B010000001", info._asin);
+        assertTrue(info._detailedInfo.startsWith("A gripping story"));
+        assertEquals(Optional.of("Book Number 1: A Thrilling Tale of Mystery and Suspense"), info._title);
+    }
+
+    @Test
+    public void skipsMarkupInCommentsAndScripts() throws Exception
+    {
+        String body = _detail.replace("<div id=\"navbar\">",
+            "<!-- " + FAKE + " --><script>var fake = '" + FAKE + "';</script><div id=\"navbar\">");
+        DetailedInfo info = assertExtracted(page(body, "UTF-8"));
+        assertTrue(info._detailedInfo.startsWith("A gripping story"));
+    }
+
+    @Test
+    public void readsOtherAsciiCompatibleCharsets() throws Exception
+    {
+        String body = _detail.replace("<meta charset=\"utf-8\">", "<meta charset=\"iso-8859-1\">")
+            .replace("A <b>gripping</b> story", "A <b>gripping</b> café story");
+        DetailedInfo info = assertExtracted(page(body, "ISO-8859-1"));
+        assertTrue(info._detailedInfo.startsWith("A gripping café story"));
+    }
+
+    @Test
+    public void parsesWholePagesInOtherCharsets() throws Exception
+    {
+        String body = _detail.replace("<meta charset=\"utf-8\">", "<meta charset=\"utf-16\">")
+            .replace("A <b>gripping</b> story", "A <b>gripping</b> café story");
+        Page page = new Page(URL, 200, "UTF-16", body.getBytes(StandardCharsets.UTF_16));
+        assertFalse(DetailExtractor.extract(page).isPresent());
+        DetailedInfo info = assertParsedWhole(page);
+        assertEquals("B010000001", info._asin);
+        assertTrue(info._detailedInfo.startsWith("A gripping café story"));
+    }
+
+    @Test
+    public void parsesWholePagesWithPartsMissing() throws Exception
+    {
+        // Without a title the extractor gives up, but the page still has
+        // everything else
+        Page page = page(_detail.replaceFirst("<title>[^<]*</title>", ""), "UTF-8");
+        assertFalse(DetailExtractor.extract(page).isPresent());
+        DetailedInfo info = assertParsedWhole(page);
+        assertEquals("B010000001", info._asin);
+        assertFalse(info._title.isPresent());
+
+        page = page(_detail.replace("<div id=\"" + DetailExtractor.DETAILS_ID + "\">", "<div>"), "UTF-8");
+        assertFalse(DetailExtractor.extract(page).isPresent());
+        assertFalse(_parser.extractDetailedInfo(page.parse(), TITLE).isPresent());
+        assertFalse(_parser.extractDetailedInfo(page, TITLE).isPresent());
+    }
+
+    /**
+     * @return what was read from the extracted parts, after checking it is
+     * the same as reading the whole page.
+     */
+    private DetailedInfo assertExtracted(Page page) throws Exception
+    {
+        Optional<Document> parts = DetailExtractor.extract(page);
+        assertTrue(parts.isPresent());
+        DetailedInfo extracted = _parser.extractDetailedInfo(parts.get(), TITLE).get();
+        assertSameInfo(_parser.extractDetailedInfo(page.parse(), TITLE).get(), extracted);
+        assertSameInfo(extracted, _parser.extractDetailedInfo(page, TITLE).get());
+        return extracted;
+    }
+
+    /**
+     * @return what the parser read, after checking it is the same as
+     * reading the whole page.
+     */
+    private DetailedInfo assertParsedWhole(Page page) throws Exception
+    {
+        DetailedInfo parsed = _parser.extractDetailedInfo(page.parse(), TITLE).get();
+        assertSameInfo(parsed, _parser.extractDetailedInfo(page, TITLE).get());
+        return parsed;
+    }
+
+    private static void assertSameInfo(DetailedInfo expected, DetailedInfo actual)
+    {
+        assertEquals(expected._asin, actual._asin);
+        assertEquals(expected._detailedInfo, actual._detailedInfo);
+        assertEquals(expected._title, actual._title);
+    }
+
+    private static Page page(String body, String charset)
+    {
+        return new Page(URL, 200, charset, body.getBytes(Charset.forName(charset)));
+    }
+
+    /**
+     * @return the product page the benchmarks use, read from the project
+     * directory, which tests run in.
+     */
+    private static String fixture()
+    {
+        try
+        {
+            return new String(Files.readAllBytes(Paths.get("src/jmh/resources/fixtures/detail.html")),
+                StandardCharsets.UTF_8);
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.github.jsbannis.worker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import com.github.jsbannis.data.Book;
+import com.github.jsbannis.data.BookQuery;
+import com.github.jsbannis.loadtest.FixtureServer;
+
+/**
+ * Crawls the load test's stand-in for Amazon over HTTP, with product pages
+ * that take longer the better their book is ranked, so they finish in about
+ * the opposite order to the one they were asked for in.
+ */
+public class ParserTest
+{
+    private static final List<String> LISTS = Arrays.asList("a", "b");
+    private static final int PAGES = 2;
+    private static final int BOOKS = PAGES * 20;
+    private static final long DELAY_STEP = 10;
+
+    private FixtureServer _fixture;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        _fixture = new FixtureServer(LISTS, PAGES, 0, 0);
+        // Places start at 0, in the last seven digits of the ASIN
+        _fixture.delayProducts(asin -> (BOOKS - Integer.parseInt(asin.substring(3))) * DELAY_STEP);
+    }
+
+    @After
+    public void tearDown()
+    {
+        _fixture.close();
+    }
+
+    @Test
+    public void ranksBooksByTheirPlaceWhateverOrderTheyArriveIn() throws Exception
+    {
+        Parser parser = new Parser(CrawlList.parse(_fixture.getCrawlLists()), 8, new Fetcher(1000, 8),
+            DetailCache.DISABLED);
+        Map<String, List<Book>> arrived = new HashMap<>();
+        Map<String, Parser.ListReport> reports = parser.crawl(
+            (list, book) -> arrived.computeIfAbsent(list, l -> new ArrayList<>()).add(book));
+
+        assertEquals(LISTS, new ArrayList<>(reports.keySet()));
+        Instant published = null;
+        for (String list : LISTS)
+        {
+            assertTrue(reports.get(list).isComplete(0));
+            assertEquals(BOOKS, reports.get(list).getFound());
+
+            List<Book> books = arrived.get(list);
+            List<Book> ranked = new ArrayList<>(books);
+            ranked.sort(BookQuery.NEWEST_FIRST);
+            assertNotEquals("Product pages should have finished out of order", ranked, books);
+
+            if (published == null)
+                published = ranked.get(0)._created;
+            for (int place = 0; place < BOOKS; place++)
+            {
+                Book book = ranked.get(place);
+                String asin = _fixture.getAsin(list, place);
+                assertEquals(asin, book._asin);
+                assertEquals(String.valueOf(place + 1), book._rank);
+                assertEquals("Book " + asin + ": A Made Up Story", book._title);
+                // Every list is published at the same time, a second older
+                // for each place down it
+                assertEquals(published.minus(Duration.ofSeconds(place)), book._created);
+            }
+        }
+    }
+}